@@ -0,0 +1,47 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.api.ui;
+
+import org.apache.sling.api.resource.Resource;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.annotation.versioning.ProviderType;
+
+import java.util.List;
+
+/**
+ * Service providing memoized information about the hierarchy of components, i.e. the chain of
+ * {@code sling:resourceSuperType}s and properties derived from it.
+ */
+@ProviderType
+public interface ComponentHierarchy {
+
+    /**
+     * @param component A component resource.
+     * @return the paths of the component and its super types, starting with the component itself
+     */
+    @NotNull
+    List<String> getSuperTypeChain(@NotNull Resource component);
+
+    /**
+     * Same as {@link DialogUtil#isPageRenderingComponent(Resource)}, but memoized.
+     *
+     * @param component A component resource.
+     * @return {@code true} if the component or one of its super types is rendered by a template
+     * or has info providers
+     */
+    boolean isPageRenderingComponent(@Nullable Resource component);
+}
@@ -25,11 +25,19 @@ import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class DialogUtil {
 
@@ -91,19 +99,17 @@ public class DialogUtil {
 
         final String suffix = StringUtils.removeStart(classicResource.getPath(), classicRoot.getPath());
         final String name = ResourceUtil.getName(suffix);
-        List<Resource> descendants = findDescendants(touchRoot, resource -> Objects.equals(resource.getName(), name));
 
         // heuristic: smallest levenshtein distance
         final Comparator<Resource> comparing = Comparator.comparing(resource -> {
             final String touchSuffix = StringUtils.removeStart(resource.getPath(), touchRoot.getPath());
             return StringUtils.getLevenshteinDistance(touchSuffix, suffix);
         });
-        descendants.sort(comparing);
-        if (descendants.isEmpty()) {
-            throw new IllegalStateException("No descendant named '"
-                    + name + "' found in '" + touchRoot.getPath() + "'");
-        }
-        return descendants.get(0);
+        return streamDescendants(touchRoot)
+                .filter(resource -> Objects.equals(resource.getName(), name))
+                .min(comparing)
+                .orElseThrow(() -> new IllegalStateException("No descendant named '"
+                        + name + "' found in '" + touchRoot.getPath() + "'"));
     }
 
     private static @Nullable Resource findContainingIncludeRoot(Resource classicResource) {
@@ -120,21 +126,45 @@ public class DialogUtil {
     }
 
     public static boolean hasXtypeInDescendants(Resource classicDialogResource) {
-        return !findDescendants(classicDialogResource, res -> {
+        return streamDescendants(classicDialogResource).anyMatch(res -> {
             final ValueMap properties = res.getValueMap();
             return properties.containsKey("xtype") || Objects.equals(properties.get("jcr:primaryType", String.class), "cq:Widget");
-        }).isEmpty();
+        });
     }
 
     public static List<Resource> findDescendants(Resource resource, Predicate<Resource> filter) {
-        List<Resource> matchingDescendants = new ArrayList<>();
-        for (Resource child : resource.getChildren()) {
-            if (filter.test(child)) {
-                matchingDescendants.add(child);
-            }
-            matchingDescendants.addAll(findDescendants(child, filter));
-        }
-        return matchingDescendants;
+        return streamDescendants(resource).filter(filter).collect(Collectors.toList());
+    }
+
+    /**
+     * Lazily traverses the descendants of a resource in depth-first pre-order, i.e. in the same
+     * order as {@link #findDescendants(Resource, Predicate)}. Resources are only loaded as the
+     * stream is consumed, hence short-circuiting operations like {@code anyMatch} or {@code findFirst}
+     * stop the traversal early.
+     *
+     * @param resource The resource whose descendants are traversed, the resource itself is not included.
+     * @return a sequential stream of all descendants
+     */
+    @NotNull
+    public static Stream<Resource> streamDescendants(@NotNull Resource resource) {
+        return streamDescendants(resource, Integer.MAX_VALUE, res -> true);
+    }
+
+    /**
+     * Lazily traverses the descendants of a resource in depth-first pre-order. The traversal uses
+     * an explicit stack instead of recursion, therefore deep trees cannot cause a stack overflow.
+     *
+     * @param resource The resource whose descendants are traversed, the resource itself is not included.
+     * @param maxDepth The maximum depth relative to the resource, i.e. 1 only traverses the children.
+     * @param descendInto The children of a descendant are only traversed if it matches this predicate.
+     * @return a sequential stream of the traversed descendants
+     */
+    @NotNull
+    public static Stream<Resource> streamDescendants(@NotNull Resource resource, int maxDepth,
+                                                     @NotNull Predicate<Resource> descendInto) {
+        final Iterator<Resource> iterator = new DescendantIterator(resource, maxDepth, descendInto);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
     }
 
     @Nullable
@@ -207,4 +237,50 @@ public class DialogUtil {
     public static String getClassicUiDialogUrl(String componentPath) {
         return CLASSIC_DIALOG_PATH_PREFIX + componentPath;
     }
+
+    private static class DescendantIterator implements Iterator<Resource> {
+
+        // one iterator over the children of each ancestor of the next resource
+        private final Deque<Iterator<Resource>> stack = new ArrayDeque<>();
+
+        private final int maxDepth;
+
+        private final Predicate<Resource> descendInto;
+
+        private Resource next;
+
+        private DescendantIterator(Resource resource, int maxDepth, Predicate<Resource> descendInto) {
+            this.maxDepth = maxDepth;
+            this.descendInto = descendInto;
+            if (maxDepth > 0) {
+                stack.push(resource.listChildren());
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !stack.isEmpty()) {
+                final Iterator<Resource> children = stack.peek();
+                if (children.hasNext()) {
+                    next = children.next();
+                    if (stack.size() < maxDepth && descendInto.test(next)) {
+                        stack.push(next.listChildren());
+                    }
+                } else {
+                    stack.pop();
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Resource next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Resource resource = next;
+            next = null;
+            return resource;
+        }
+    }
 }
@@ -0,0 +1,120 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.api.ui;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A set of absolute resource paths organized as a tree of path segments. Lookups of a path and
+ * of its ancestors take time proportional to the depth of the path, independent of the number
+ * of paths in the set.
+ * <br>
+ * Instances are not thread-safe.
+ */
+public class PathTrie {
+
+    private final Node root = new Node();
+
+    private int size;
+
+    /**
+     * @param path An absolute path.
+     * @return {@code true} if the path was not contained yet
+     */
+    public boolean add(@NotNull String path) {
+        Node node = root;
+        for (String segment : segments(path)) {
+            node = node.children.computeIfAbsent(segment, s -> new Node());
+        }
+        if (node.contained) {
+            return false;
+        }
+        node.contained = true;
+        size++;
+        return true;
+    }
+
+    public boolean contains(@NotNull String path) {
+        Node node = root;
+        for (String segment : segments(path)) {
+            node = node.children.get(segment);
+            if (node == null) {
+                return false;
+            }
+        }
+        return node.contained;
+    }
+
+    /**
+     * @param path An absolute path.
+     * @return {@code true} if a proper ancestor of the path is contained
+     */
+    public boolean hasAncestor(@NotNull String path) {
+        return findAncestor(path) != null;
+    }
+
+    /**
+     * @param path An absolute path.
+     * @return the top-most contained proper ancestor of the path or {@code null} if there is none
+     */
+    @Nullable
+    public String findAncestor(@NotNull String path) {
+        final String[] segments = segments(path);
+        Node node = root;
+        if (node.contained && segments.length > 0) {
+            return "/";
+        }
+        final StringBuilder ancestor = new StringBuilder(path.length());
+        for (int i = 0; i < segments.length - 1; i++) {
+            node = node.children.get(segments[i]);
+            if (node == null) {
+                return null;
+            }
+            ancestor.append('/').append(segments[i]);
+            if (node.contained) {
+                return ancestor.toString();
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private static String[] segments(String path) {
+        if (!path.startsWith("/")) {
+            throw new IllegalArgumentException("Path must be absolute: '" + path + "'");
+        }
+        final String relativePath = path.substring(1);
+        return relativePath.isEmpty() ? new String[0] : relativePath.split("/");
+    }
+
+    private static class Node {
+
+        private final Map<String, Node> children = new HashMap<>(4);
+
+        private boolean contained;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.api.ui.consoles;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.annotation.versioning.ProviderType;
+
+import java.util.List;
+
+/**
+ * Service providing example pages that use a component.
+ */
+@ProviderType
+public interface ComponentUsage {
+
+    /**
+     * @param resolver The resolver of the current user.
+     * @param resourceType The resource type of the component.
+     * @return the paths of up to {@link #getMaxExamples()} pages containing the component, or {@code null}
+     * if the usage information is not available
+     */
+    @Nullable
+    List<String> getExamplePages(@NotNull ResourceResolver resolver, @NotNull String resourceType);
+
+    /**
+     * @return the maximum number of example pages per component
+     */
+    int getMaxExamples();
+
+    /**
+     * @return {@code true} if example links should be loaded asynchronously instead of being rendered inline
+     */
+    boolean isAsync();
+}
@@ -15,7 +15,9 @@
  */
 package net.distilledcode.aem.ui.touch.support.api.ui.consoles;
 
+import com.day.cq.wcm.api.Page;
 import com.day.cq.wcm.api.PageManager;
+import net.distilledcode.aem.ui.touch.support.api.ui.ComponentHierarchy;
 import net.distilledcode.aem.ui.touch.support.api.ui.DialogUtil;
 import net.distilledcode.aem.ui.touch.support.api.ui.Link;
 import net.distilledcode.aem.ui.touch.support.api.ui.QuickActions;
@@ -24,19 +26,24 @@ import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceUtil;
 import org.apache.sling.models.annotations.Model;
+import org.apache.sling.models.annotations.injectorspecific.InjectionStrategy;
+import org.apache.sling.models.annotations.injectorspecific.OSGiService;
+import org.apache.sling.models.annotations.injectorspecific.Self;
+import org.jetbrains.annotations.Nullable;
 
 import javax.inject.Inject;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 import static net.distilledcode.aem.ui.touch.support.api.ui.DialogUtil.COMPARISON_PATH_PREFIX;
 import static net.distilledcode.aem.ui.touch.support.api.ui.DialogUtil.isClassicComponentDialog;
-import static net.distilledcode.aem.ui.touch.support.api.ui.DialogUtil.isPageRenderingComponent;
 import static net.distilledcode.aem.ui.touch.support.api.ui.Link.attributes;
 
 @Model(adaptables = Resource.class)
@@ -48,10 +55,61 @@ public class ConsoleItem {
 
     private final Resource resource;
 
-    @Inject
+    private final String type;
+
+    private final String touchPath;
+
+    private final boolean converted;
+
+    private final String componentPath;
+
+    private final String exampleLinksUrl;
+
+    private final ComponentUsage componentUsage;
+
     public ConsoleItem(Resource resource) {
+        this(resource, null, null, null);
+    }
+
+    /**
+     * @param resource The convertible resource.
+     * @param componentHierarchy The service used to determine whether components render pages,
+     *                           if not available {@link DialogUtil} is used.
+     * @param componentUsage The service providing example pages, if not available they are found with a query.
+     * @param rowProvider The service providing the data of the row, if not available it is computed by the item.
+     */
+    @Inject
+    public ConsoleItem(@Self Resource resource,
+                       @OSGiService(injectionStrategy = InjectionStrategy.OPTIONAL) @Nullable ComponentHierarchy componentHierarchy,
+                       @OSGiService(injectionStrategy = InjectionStrategy.OPTIONAL) @Nullable ComponentUsage componentUsage,
+                       @OSGiService(injectionStrategy = InjectionStrategy.OPTIONAL) @Nullable ConsoleRowProvider rowProvider) {
         this.resource = resource;
         this.resolver = resource.getResourceResolver();
+        this.componentUsage = componentUsage;
+        if (rowProvider != null) {
+            final ConsoleRow row = rowProvider.getRow(resource);
+            this.type = row.getType();
+            this.touchPath = row.getTouchPath();
+            this.converted = row.isConverted();
+            this.componentPath = row.getComponentPath();
+            this.exampleLinksUrl = row.getExampleLinksUrl();
+        } else if (isClassicComponentDialog(resource)) {
+            final Resource component = resource.getParent();
+            final boolean pageRendering = componentHierarchy != null
+                    ? componentHierarchy.isPageRenderingComponent(component)
+                    : DialogUtil.isPageRenderingComponent(component);
+            this.type = pageRendering ? "Classic Page Dialog" : "Classic Dialog";
+            this.touchPath = DialogUtil.getTouchUiPath(resource);
+            this.converted = resolver.getResource(touchPath) != null;
+            this.componentPath = ResourceUtil.getParent(resource.getPath());
+            this.exampleLinksUrl = null;
+        } else {
+            this.type = "Include";
+            this.touchPath = DialogUtil.getTouchUiPath(resource);
+            this.converted = resolver.getResource(touchPath) != null;
+            this.componentPath = null;
+            this.exampleLinksUrl = null;
+        }
     }
 
     public String getId() {
@@ -59,15 +117,7 @@ public class ConsoleItem {
     }
 
     public String getType() {
-        if (isClassicComponentDialog(resource)) {
-            if (isPageRenderingComponent(resource.getParent())) {
-                return "Classic Page Dialog";
-            } else {
-                return "Classic Dialog";
-            }
-        } else {
-            return "Include";
-        }
+        return type;
     }
 
     public String getClassicPath() {
@@ -76,11 +126,11 @@ public class ConsoleItem {
 
     public String getTouchPath() {
         // TODO: ask converter for path
-        return DialogUtil.getTouchUiPath(resource);
+        return touchPath;
     }
 
     public boolean isConverted() {
-        return resolver.getResource(getTouchPath()) != null;
+        return converted;
     }
 
     public Collection<Link> getClassicLinks() {
@@ -125,13 +175,45 @@ public class ConsoleItem {
         return links;
     }
 
+    /**
+     * @return {@code true} if the example links are not rendered inline, but loaded from {@link #getExampleLinksUrl()}
+     */
+    public boolean isExampleLinksAsync() {
+        return componentUsage != null && componentUsage.isAsync() && exampleLinksUrl != null;
+    }
+
+    /**
+     * @return the URL provided by the {@link ConsoleRowProvider}, or {@code null} if there is none
+     */
+    @Nullable
+    public String getExampleLinksUrl() {
+        return exampleLinksUrl;
+    }
+
     public Collection<Link> getExampleLinks() {
+        return isExampleLinksAsync() ? Collections.emptyList() : loadExampleLinks();
+    }
+
+    /**
+     * @return links to pages using the component, served from the {@link ComponentUsage} service if
+     * available, otherwise found with a query
+     */
+    public Collection<Link> loadExampleLinks() {
         final PageManager pageManager = Optional.ofNullable(resolver.adaptTo(PageManager.class))
                 .orElseThrow(() -> new NullPointerException("Could not adapt ResourceResolver to PageManager"));
-        final String query = String.format("/jcr:root/content//*[@sling:resourceType='%s']", getResourceType());
-        final Iterable<Resource> resources = () -> resolver.findResources(query, "xpath");
-        return StreamSupport.stream(resources.spliterator(), false)
-                .map(pageManager::getContainingPage)
+        final List<String> examplePages = componentUsage == null
+                ? null
+                : componentUsage.getExamplePages(resolver, getResourceType());
+        final Stream<Page> pages;
+        if (examplePages != null) {
+            pages = examplePages.stream().map(pageManager::getPage);
+        } else {
+            // the index is not available (yet)
+            final String query = String.format("/jcr:root/content//*[@sling:resourceType='%s']", getResourceType());
+            final Iterable<Resource> resources = () -> resolver.findResources(query, "xpath");
+            pages = StreamSupport.stream(resources.spliterator(), false).map(pageManager::getContainingPage);
+        }
+        return pages
                 .filter(Objects::nonNull)
                 .map(page -> {
                     final String title = page.getProperties().get("jcr:title", page.getName());
@@ -139,7 +221,7 @@ public class ConsoleItem {
                             attributes("title", title, "target", "_blank"));
                 })
                 .distinct()
-                .limit(5)
+                .limit(componentUsage == null ? 5 : componentUsage.getMaxExamples())
                 .collect(Collectors.toList());
     }
 
@@ -152,7 +234,7 @@ public class ConsoleItem {
     }
 
     private String getComponentPath() {
-        return isClassicComponentDialog(resource) ? getParentPath() : null;
+        return componentPath;
     }
 
     private String getParentPath() {
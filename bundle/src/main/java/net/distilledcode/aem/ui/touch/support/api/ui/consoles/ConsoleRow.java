@@ -0,0 +1,57 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.api.ui.consoles;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.annotation.versioning.ProviderType;
+
+/**
+ * The data of a row of the conversion console, i.e. of a {@link ConsoleItem}.
+ */
+@ProviderType
+public interface ConsoleRow {
+
+    /**
+     * @return the type of the convertible resource, e.g. "Classic Dialog" or "Include"
+     */
+    @NotNull
+    String getType();
+
+    /**
+     * @return the path of the touch UI resource the resource is converted to
+     */
+    @NotNull
+    String getTouchPath();
+
+    /**
+     * @return {@code true} if the touch UI resource exists
+     */
+    boolean isConverted();
+
+    /**
+     * @return the path of the component if the row represents a component dialog, otherwise {@code null}
+     */
+    @Nullable
+    String getComponentPath();
+
+    /**
+     * @return the URL the example links of the row are loaded from, or {@code null} if they cannot be
+     * loaded asynchronously
+     */
+    @Nullable
+    String getExampleLinksUrl();
+}
@@ -0,0 +1,35 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.api.ui.consoles;
+
+import org.apache.sling.api.resource.Resource;
+import org.jetbrains.annotations.NotNull;
+import org.osgi.annotation.versioning.ProviderType;
+
+/**
+ * Service providing the rows of the conversion console. Rows may be computed for a whole page of
+ * items at once and are kept for the lifetime of the resolver of the resources.
+ */
+@ProviderType
+public interface ConsoleRowProvider {
+
+    /**
+     * @param resource A resource rendered as console item.
+     * @return the row of the resource
+     */
+    @NotNull
+    ConsoleRow getRow(@NotNull Resource resource);
+}
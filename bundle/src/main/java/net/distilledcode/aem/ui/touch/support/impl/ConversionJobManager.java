@@ -0,0 +1,595 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl;
+
+import net.distilledcode.aem.ui.touch.support.api.ui.DialogUtil;
+import net.distilledcode.aem.ui.touch.support.api.ui.PathTrie;
+import net.distilledcode.aem.ui.touch.support.spi.DialogConverter;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Converts dialogs asynchronously. The paths of a conversion job are grouped into independent
+ * trees, i.e. all paths below the same component as well as the resources referenced by includes
+ * together with the dialogs including them. The groups are packed into batches, which are converted
+ * in parallel, each with its own clone of the resolver of the user who started the job. Each batch
+ * is committed separately. Within a batch, resources referenced by includes are converted before
+ * any dialogs, because dialogs may depend on them.
+ * <br>
+ * The progress of a job, including the error messages of failed conversions, is persisted below
+ * {@value #JOBS_PATH} with the {@link ServiceResolvers#WRITER} service user, so that users do not
+ * need write access to {@code /var}. The remaining paths are persisted as well, therefore a job
+ * that was interrupted, e.g. by a restart, can be resumed. Jobs can only be read and resumed by
+ * the user who started them. Jobs are removed when the next job is started after their time to
+ * live has expired.
+ */
+@Component(service = ConversionJobManager.class)
+@Designate(ocd = ConversionJobManager.Config.class)
+public class ConversionJobManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConversionJobManager.class);
+
+    public static final String JOBS_PATH = "/var/distilledcode/aem-touch-ui-support/conversion-jobs";
+
+    static final String PN_STATUS = "status";
+    static final String PN_TOTAL = "total";
+    static final String PN_PROCESSED = "processed";
+    static final String PN_FAILED = "failed";
+    static final String PN_PENDING = "pending";
+    static final String PN_FORCE = "force";
+    static final String PN_STARTED_BY = "startedBy";
+    static final String PN_CREATED = "created";
+    static final String PN_FINISHED = "finished";
+    static final String NN_ERRORS = "errors";
+
+    public enum Status {
+        RUNNING, FINISHED, ABORTED, INTERRUPTED
+    }
+
+    @ObjectClassDefinition(name = "Distilled Code ~ Dialog Conversion Jobs")
+    @interface Config {
+        @AttributeDefinition(description = "Maximum number of batches that are converted in parallel.")
+        int threads() default 2;
+
+        @AttributeDefinition(description = "Number of paths converted and committed together. Paths that depend " +
+                "on each other are always converted together, even if they exceed the batch size.")
+        int batch_size() default 20;
+
+        @AttributeDefinition(description = "Number of hours after which ended and interrupted jobs are removed.")
+        int job_ttl_hours() default 168;
+    }
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private volatile DialogConverter dialogConverter;
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    // IDs of the jobs running in this instance
+    private final Set<String> running = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    private ExecutorService coordinators;
+
+    private ExecutorService workers;
+
+    private int batchSize;
+
+    private long jobTtlMillis;
+
+    @Activate
+    public void activate(Config config) {
+        this.batchSize = Math.max(1, config.batch_size());
+        this.jobTtlMillis = TimeUnit.HOURS.toMillis(Math.max(1, config.job_ttl_hours()));
+        this.coordinators = Executors.newCachedThreadPool(new NamedThreadFactory("distilledcode-conversion-job-"));
+        this.workers = Executors.newFixedThreadPool(Math.max(1, config.threads()), new NamedThreadFactory("distilledcode-conversion-batch-"));
+    }
+
+    @Deactivate
+    public void deactivate() {
+        coordinators.shutdownNow();
+        workers.shutdownNow();
+        running.clear();
+    }
+
+    public boolean isConverterAvailable() {
+        return dialogConverter != null;
+    }
+
+    /**
+     * Starts a conversion job, which is run with a clone of the given resolver.
+     *
+     * @param resolver The resolver of the user starting the job.
+     * @param paths The paths to convert, ordered such that resources referenced by includes come first.
+     * @param force Whether existing touch UI dialogs should be overwritten.
+     * @return the ID of the job
+     * @throws PersistenceException if the job cannot be persisted
+     * @throws LoginException if the resolver cannot be cloned or the service user is not available
+     */
+    @NotNull
+    public String start(@NotNull ResourceResolver resolver, @NotNull List<String> paths, boolean force)
+            throws PersistenceException, LoginException {
+        final String id = UUID.randomUUID().toString();
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put("jcr:primaryType", "nt:unstructured");
+        properties.put(PN_STATUS, Status.RUNNING.name());
+        properties.put(PN_TOTAL, (long) paths.size());
+        properties.put(PN_PROCESSED, 0L);
+        properties.put(PN_FAILED, 0L);
+        properties.put(PN_PENDING, paths.toArray(new String[0]));
+        properties.put(PN_FORCE, force);
+        properties.put(PN_STARTED_BY, resolver.getUserID());
+        properties.put(PN_CREATED, Calendar.getInstance());
+        try (ResourceResolver serviceResolver = ServiceResolvers.open(resolverFactory, ServiceResolvers.WRITER)) {
+            removeExpiredJobs(serviceResolver);
+            ResourceUtil.getOrCreateResource(serviceResolver, JOBS_PATH + "/" + id, properties, "sling:Folder", true);
+        }
+        run(resolver, id, paths, force);
+        return id;
+    }
+
+    /**
+     * Resumes a job that was interrupted, e.g. by a restart, with the remaining paths.
+     *
+     * @param resolver The resolver of the user resuming the job.
+     * @param id The ID of the job.
+     * @return {@code false} if there is no interrupted job with the given ID that was started by the user
+     * @throws PersistenceException if the job cannot be persisted
+     * @throws LoginException if the resolver cannot be cloned or the service user is not available
+     */
+    public boolean resume(@NotNull ResourceResolver resolver, @NotNull String id) throws PersistenceException, LoginException {
+        final List<String> pending;
+        final boolean force;
+        try (ResourceResolver serviceResolver = ServiceResolvers.open(resolverFactory, ServiceResolvers.WRITER)) {
+            final Resource job = getJob(serviceResolver, resolver.getUserID(), id);
+            if (job == null || getStatus(job) != Status.INTERRUPTED) {
+                return false;
+            }
+            final ValueMap properties = job.getValueMap();
+            pending = Arrays.asList(properties.get(PN_PENDING, new String[0]));
+            force = properties.get(PN_FORCE, false);
+            final ModifiableValueMap modifiableProperties = job.adaptTo(ModifiableValueMap.class);
+            if (modifiableProperties == null) {
+                throw new PersistenceException("Cannot modify job " + job.getPath());
+            }
+            modifiableProperties.put(PN_STATUS, Status.RUNNING.name());
+            serviceResolver.commit();
+        }
+        LOG.info("Resuming conversion job {} with {} pending paths", id, pending.size());
+        run(resolver, id, pending, force);
+        return true;
+    }
+
+    /**
+     * @param resolver The resolver of the current user.
+     * @param id The ID of the job.
+     * @return the progress of the job, or {@code null} if there is no job with the given ID that
+     * was started by the user
+     * @throws LoginException if the service user is not available
+     */
+    @Nullable
+    public JobStatus getJobStatus(@NotNull ResourceResolver resolver, @NotNull String id) throws LoginException {
+        try (ResourceResolver serviceResolver = ServiceResolvers.open(resolverFactory, ServiceResolvers.WRITER)) {
+            final Resource job = getJob(serviceResolver, resolver.getUserID(), id);
+            return job == null ? null : new JobStatus(job, getStatus(job));
+        }
+    }
+
+    /**
+     * @return the status of the job, jobs that are persisted as running but are not running in this
+     * instance are reported as {@link Status#INTERRUPTED}
+     */
+    @NotNull
+    private Status getStatus(@NotNull Resource job) {
+        final Status status = Status.valueOf(job.getValueMap().get(PN_STATUS, Status.ABORTED.name()));
+        return status == Status.RUNNING && !running.contains(job.getName()) ? Status.INTERRUPTED : status;
+    }
+
+    /**
+     * Removes the jobs that ended, or were interrupted, longer ago than the configured time to live.
+     * The changes are committed along with the next change of the given resolver.
+     */
+    private void removeExpiredJobs(@NotNull ResourceResolver serviceResolver) throws PersistenceException {
+        final Resource jobs = serviceResolver.getResource(JOBS_PATH);
+        if (jobs == null) {
+            return;
+        }
+        final long expiry = System.currentTimeMillis() - jobTtlMillis;
+        final List<Resource> expired = new ArrayList<>();
+        for (Resource job : jobs.getChildren()) {
+            final ValueMap properties = job.getValueMap();
+            final Calendar ended = properties.get(PN_FINISHED, properties.get(PN_CREATED, Calendar.class));
+            if (!running.contains(job.getName()) && ended != null && ended.getTimeInMillis() < expiry) {
+                expired.add(job);
+            }
+        }
+        for (Resource job : expired) {
+            serviceResolver.delete(job);
+        }
+        if (!expired.isEmpty()) {
+            LOG.info("Removing {} expired conversion jobs", expired.size());
+        }
+    }
+
+    @Nullable
+    private static Resource getJob(@NotNull ResourceResolver serviceResolver, @Nullable String userId, @NotNull String id) {
+        final Resource job = id.contains("/") ? null : serviceResolver.getResource(JOBS_PATH + "/" + id);
+        return job != null && Objects.equals(job.getValueMap().get(PN_STARTED_BY, String.class), userId) ? job : null;
+    }
+
+    private void run(ResourceResolver resolver, String id, List<String> paths, boolean force) throws LoginException {
+        // the clone is created in the caller's thread, because the resolver must not be used concurrently
+        final ResourceResolver jobResolver = resolver.clone(null);
+        running.add(id);
+        try {
+            coordinators.execute(() -> {
+                try (ResourceResolver serviceResolver = ServiceResolvers.open(resolverFactory, ServiceResolvers.WRITER)) {
+                    new Job(jobResolver, serviceResolver, id, paths, force).run();
+                } catch (LoginException e) {
+                    LOG.error("Failed to run conversion job {}, the service user is not available", id, e);
+                } finally {
+                    running.remove(id);
+                    jobResolver.close();
+                }
+            });
+        } catch (RuntimeException e) {
+            running.remove(id);
+            jobResolver.close();
+            throw e;
+        }
+    }
+
+    private class Job {
+
+        // resolver of the user who started the job, used for the conversion
+        private final ResourceResolver resolver;
+
+        // resolver of the service user, used for the job's state
+        private final ResourceResolver serviceResolver;
+
+        private final String path;
+
+        private final Set<String> pending;
+
+        private final boolean force;
+
+        private Job(ResourceResolver resolver, ResourceResolver serviceResolver, String id, List<String> paths, boolean force) {
+            this.resolver = resolver;
+            this.serviceResolver = serviceResolver;
+            this.path = JOBS_PATH + "/" + id;
+            this.pending = new LinkedHashSet<>(paths);
+            this.force = force;
+        }
+
+        private void run() {
+            final long start = System.currentTimeMillis();
+            Status status = Status.FINISHED;
+            try {
+                final DialogConverter converter = dialogConverter;
+                if (converter == null) {
+                    throw new IllegalStateException("No DialogConverter is available");
+                }
+
+                convert(converter, batches(group(new ArrayList<>(pending))));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                status = Status.INTERRUPTED;
+                LOG.warn("Conversion job {} was interrupted", path);
+            } catch (Exception e) {
+                status = Status.ABORTED;
+                LOG.error("Conversion job {} was aborted", path, e);
+            }
+
+            if (status != Status.INTERRUPTED) {
+                try {
+                    final ModifiableValueMap properties = getProperties();
+                    properties.put(PN_STATUS, status.name());
+                    properties.put(PN_FINISHED, Calendar.getInstance());
+                    serviceResolver.commit();
+                } catch (PersistenceException e) {
+                    LOG.error("Failed to persist status of conversion job {}", path, e);
+                }
+            }
+            LOG.info("Conversion job {} ended with status {} after {}ms", path, status, System.currentTimeMillis() - start);
+        }
+
+        /**
+         * Groups the paths into independent trees: paths below the same component are grouped, and
+         * resources referenced by includes are grouped with the dialogs including them. Within each
+         * group, resources referenced by includes come before the dialogs that may include them.
+         */
+        private Collection<List<String>> group(List<String> paths) {
+            final PathTrie trie = new PathTrie();
+            paths.forEach(trie::add);
+            final Map<String, String> groupKeys = new HashMap<>();
+            final Map<String, Set<String>> groups = new LinkedHashMap<>();
+            for (String p : paths) {
+                final Resource resource = resolver.getResource(p);
+                final String key = resource == null ? p : getComponentPath(resource);
+                groupKeys.put(p, key);
+                groups.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(p);
+            }
+            for (String p : paths) {
+                final Resource resource = resolver.getResource(p);
+                if (resource == null) {
+                    continue;
+                }
+                for (String included : getIncludedPaths(resource)) {
+                    // the include references a path of this job or a descendant of one
+                    final String includedPath = trie.contains(included) ? included : trie.findAncestor(included);
+                    final String includedKey = includedPath == null ? null : groupKeys.get(includedPath);
+                    final String key = groupKeys.get(p);
+                    if (includedKey != null && !includedKey.equals(key)) {
+                        // merge the group of the included resource into the group of the including dialog
+                        final Set<String> merged = groups.remove(includedKey);
+                        merged.forEach(path -> groupKeys.put(path, key));
+                        groups.get(key).addAll(merged);
+                    }
+                }
+            }
+
+            final List<List<String>> ordered = new ArrayList<>(groups.size());
+            for (Set<String> group : groups.values()) {
+                // includes must be converted before the dialogs that may include them
+                final Map<Boolean, List<String>> phases = group.stream()
+                        .collect(Collectors.partitioningBy(p -> DialogUtil.isClassicDialog(resolver.getResource(p))));
+                final List<String> batch = new ArrayList<>(phases.get(false));
+                batch.addAll(phases.get(true));
+                ordered.add(batch);
+            }
+            return ordered;
+        }
+
+        /**
+         * Packs the groups into batches of about the configured size, groups are never split.
+         */
+        private List<List<String>> batches(Collection<List<String>> groups) {
+            final List<List<String>> batches = new ArrayList<>();
+            List<String> batch = new ArrayList<>();
+            for (List<String> group : groups) {
+                if (!batch.isEmpty() && batch.size() + group.size() > batchSize) {
+                    batches.add(batch);
+                    batch = new ArrayList<>();
+                }
+                batch.addAll(group);
+            }
+            if (!batch.isEmpty()) {
+                batches.add(batch);
+            }
+            return batches;
+        }
+
+        private void convert(DialogConverter converter, List<List<String>> batches) throws Exception {
+            final CompletionService<Collection<DialogConverter.Result>> completionService = new ExecutorCompletionService<>(workers);
+            for (List<String> batch : batches) {
+                // clones are created in the coordinator thread, which is the only thread using the job's resolver
+                final ResourceResolver batchResolver = resolver.clone(null);
+                try {
+                    completionService.submit(() -> convertBatch(converter, batchResolver, batch));
+                } catch (RuntimeException e) {
+                    batchResolver.close();
+                    throw e;
+                }
+            }
+            for (int i = 0; i < batches.size(); i++) {
+                try {
+                    record(completionService.take().get());
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+
+        private Collection<DialogConverter.Result> convertBatch(DialogConverter converter, ResourceResolver batchResolver,
+                                                                List<String> batch) {
+            try {
+                final Collection<DialogConverter.Result> results = converter.convert(batchResolver, batch, force);
+                if (batchResolver.hasChanges()) {
+                    batchResolver.commit();
+                }
+                return results;
+            } catch (Exception e) {
+                LOG.warn("Failed to convert batch {}", batch, e);
+                final String message = "Failed to convert batch: " + e.getMessage();
+                return batch.stream()
+                        .map(p -> new DialogConverter.Result(p, message))
+                        .collect(Collectors.toList());
+            } finally {
+                batchResolver.close();
+            }
+        }
+
+        private void record(Collection<DialogConverter.Result> results) throws PersistenceException {
+            final ModifiableValueMap properties = getProperties();
+            long failed = properties.get(PN_FAILED, 0L);
+            for (DialogConverter.Result result : results) {
+                pending.remove(result.getPath());
+                if (!result.isSuccess()) {
+                    final Map<String, Object> error = new HashMap<>();
+                    error.put("jcr:primaryType", "nt:unstructured");
+                    error.put("path", result.getPath());
+                    error.put("error", result.getError());
+                    ResourceUtil.getOrCreateResource(serviceResolver, path + "/" + NN_ERRORS + "/" + failed++, error, "nt:unstructured", false);
+                }
+            }
+            properties.put(PN_PROCESSED, properties.get(PN_PROCESSED, 0L) + results.size());
+            properties.put(PN_FAILED, failed);
+            properties.put(PN_PENDING, pending.toArray(new String[0]));
+            serviceResolver.commit();
+        }
+
+        private ModifiableValueMap getProperties() throws PersistenceException {
+            final Resource job = serviceResolver.getResource(path);
+            final ModifiableValueMap properties = job == null ? null : job.adaptTo(ModifiableValueMap.class);
+            if (properties == null) {
+                throw new PersistenceException("Cannot modify job " + path);
+            }
+            return properties;
+        }
+    }
+
+    /**
+     * @return the path of the component containing the resource, or the path of its parent if it
+     * is not part of a component
+     */
+    @NotNull
+    private static String getComponentPath(@NotNull Resource resource) {
+        for (Resource ancestor = resource; ancestor != null; ancestor = ancestor.getParent()) {
+            if (DialogUtil.isComponent(ancestor)) {
+                return ancestor.getPath();
+            }
+        }
+        return ResourceUtil.getParent(resource.getPath());
+    }
+
+    /**
+     * @return the paths referenced by the {@code cqinclude} widgets of the given resource and its descendants
+     */
+    @NotNull
+    private static Set<String> getIncludedPaths(@NotNull Resource resource) {
+        final Set<String> includedPaths = new LinkedHashSet<>();
+        Stream.concat(Stream.of(resource), DialogUtil.streamDescendants(resource))
+                .map(Resource::getValueMap)
+                .filter(properties -> Objects.equals(properties.get("xtype", String.class), "cqinclude"))
+                .map(properties -> properties.get("path", String.class))
+                .filter(path -> path != null && path.startsWith("/"))
+                .forEach(path -> includedPaths.add(StringUtils.removeEnd(path, ".infinity.json")));
+        return includedPaths;
+    }
+
+    /**
+     * Progress of a job, read with the service user.
+     */
+    public static class JobStatus {
+
+        private final String id;
+
+        private final Status status;
+
+        private final long total;
+
+        private final long processed;
+
+        private final long failed;
+
+        private final List<DialogConverter.Result> errors = new ArrayList<>();
+
+        private JobStatus(@NotNull Resource job, @NotNull Status status) {
+            final ValueMap properties = job.getValueMap();
+            this.id = job.getName();
+            this.status = status;
+            this.total = properties.get(PN_TOTAL, 0L);
+            this.processed = properties.get(PN_PROCESSED, 0L);
+            this.failed = properties.get(PN_FAILED, 0L);
+            final Resource errorsResource = job.getChild(NN_ERRORS);
+            if (errorsResource != null) {
+                for (Resource error : errorsResource.getChildren()) {
+                    final ValueMap errorProperties = error.getValueMap();
+                    errors.add(new DialogConverter.Result(errorProperties.get("path", ""), errorProperties.get("error", "")));
+                }
+            }
+        }
+
+        @NotNull
+        public String getId() {
+            return id;
+        }
+
+        @NotNull
+        public Status getStatus() {
+            return status;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public long getProcessed() {
+            return processed;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        @NotNull
+        public List<DialogConverter.Result> getErrors() {
+            return Collections.unmodifiableList(errors);
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+
+        private final AtomicInteger counter = new AtomicInteger();
+
+        private NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(@NotNull Runnable runnable) {
+            final Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
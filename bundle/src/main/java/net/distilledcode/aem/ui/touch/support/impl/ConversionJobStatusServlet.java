@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl;
+
+import net.distilledcode.aem.ui.touch.support.spi.DialogConverter;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
+import org.jetbrains.annotations.NotNull;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.servlet.Servlet;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Writes the progress of a conversion job started by the {@link DialogConversionServlet}, e.g.
+ * {@code <conversion-config>.status.json?job=<id>}.
+ */
+@Component(service = Servlet.class)
+@SlingServletResourceTypes(
+        resourceTypes = "distilledcode/aem-touch-ui-support/ui/components/conversion-config",
+        selectors = ConversionJobStatusServlet.SELECTOR,
+        extensions = "json"
+)
+public class ConversionJobStatusServlet extends SlingSafeMethodsServlet {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConversionJobStatusServlet.class);
+
+    static final String SELECTOR = "status";
+
+    @Reference(policyOption = ReferencePolicyOption.GREEDY)
+    private ConversionJobManager conversionJobManager;
+
+    @Override
+    protected void doGet(@NotNull SlingHttpServletRequest request, @NotNull SlingHttpServletResponse response) throws IOException {
+        final RequestParameter jobParameter = request.getRequestParameter(DialogConversionServlet.PARAM_JOB);
+        final ConversionJobManager.JobStatus job;
+        try {
+            job = jobParameter == null
+                    ? null
+                    : conversionJobManager.getJobStatus(request.getResourceResolver(), jobParameter.getString());
+        } catch (LoginException e) {
+            LOG.error("Failed to read conversion job", e);
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Failed to read conversion job");
+            return;
+        }
+        if (job == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Conversion job not found");
+            return;
+        }
+
+        final JsonArrayBuilder errors = Json.createArrayBuilder();
+        for (DialogConverter.Result error : job.getErrors()) {
+            errors.add(Json.createObjectBuilder()
+                    .add("path", error.getPath())
+                    .add("error", error.getError()));
+        }
+
+        final JsonObject json = Json.createObjectBuilder()
+                .add("id", job.getId())
+                .add("status", job.getStatus().name().toLowerCase(Locale.ENGLISH))
+                .add("total", job.getTotal())
+                .add("processed", job.getProcessed())
+                .add("failed", job.getFailed())
+                .add("errors", errors)
+                .build();
+
+        // the status changes while the job is running
+        response.setHeader("Cache-Control", "no-cache");
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        Json.createWriter(response.getWriter()).writeObject(json);
+    }
+}
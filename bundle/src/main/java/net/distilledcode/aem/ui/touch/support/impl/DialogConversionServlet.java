@@ -17,49 +17,57 @@ package net.distilledcode.aem.ui.touch.support.impl;
 
 import net.distilledcode.aem.ui.touch.support.api.ui.consoles.ConsoleItem;
 import net.distilledcode.aem.ui.touch.support.api.ui.consoles.ConversionConfig;
-import net.distilledcode.aem.ui.touch.support.spi.DialogConverter;
-import org.apache.commons.lang3.StringUtils;
+import net.distilledcode.aem.ui.touch.support.impl.ui.ConsoleRows;
+import net.distilledcode.aem.ui.touch.support.impl.ui.ConvertibleResourceIndex;
 import org.apache.jackrabbit.vault.fs.api.PathFilterSet;
+import org.apache.jackrabbit.vault.fs.config.DefaultMetaInf;
 import org.apache.jackrabbit.vault.fs.config.DefaultWorkspaceFilter;
+import org.apache.jackrabbit.vault.fs.io.ExportOptions;
 import org.apache.jackrabbit.vault.packaging.JcrPackage;
 import org.apache.jackrabbit.vault.packaging.JcrPackageDefinition;
 import org.apache.jackrabbit.vault.packaging.JcrPackageManager;
 import org.apache.jackrabbit.vault.packaging.PackageException;
+import org.apache.jackrabbit.vault.packaging.PackageProperties;
 import org.apache.jackrabbit.vault.packaging.Packaging;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.PersistenceException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.jetbrains.annotations.NotNull;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
-import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.osgi.service.component.annotations.ReferencePolicyOption;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.json.Json;
+import javax.json.JsonObject;
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Properties;
 import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
-
-import static net.distilledcode.aem.ui.touch.support.impl.ui.ConsoleItemDataSource.getConvertibleResources;
 
 @Component(
         service = Servlet.class,
@@ -69,19 +77,46 @@ import static net.distilledcode.aem.ui.touch.support.impl.ui.ConsoleItemDataSour
                 "sling.servlet.resourceTypes=distilledcode/aem-touch-ui-support/ui/components/conversion-config"
         }
 )
+@Designate(ocd = DialogConversionServlet.Config.class)
 public class DialogConversionServlet extends SlingAllMethodsServlet {
 
     private static final Logger LOG = LoggerFactory.getLogger(DialogConversionServlet.class);
 
     private static final String PARAM_PATHS = "paths";
     private static final String PARAM_FORCE = "force";
+    private static final String PARAM_RESUME = "resume";
+    static final String PARAM_JOB = "job";
+
+    private static final String PACKAGE_GROUP = "aem-touch-ui-support";
+    private static final String PACKAGE_NAME = "converted";
 
-    @Reference(policyOption = ReferencePolicyOption.GREEDY, cardinality = ReferenceCardinality.OPTIONAL)
-    private DialogConverter dialogConverter;
+    @ObjectClassDefinition(name = "Distilled Code ~ Dialog Conversion Servlet")
+    @interface Config {
+        @AttributeDefinition(description = "Write the package of converted dialogs directly to the response, " +
+                "instead of creating and removing a temporary package in the repository.")
+        boolean streaming_export() default true;
+    }
+
+    @Reference(policyOption = ReferencePolicyOption.GREEDY)
+    private ConversionJobManager conversionJobManager;
 
     @Reference(policyOption = ReferencePolicyOption.GREEDY)
     private Packaging packaging;
 
+    @Reference(policyOption = ReferencePolicyOption.GREEDY)
+    private ConvertibleResourceIndex index;
+
+    @Reference(policyOption = ReferencePolicyOption.GREEDY)
+    private ConsoleRows consoleRows;
+
+    private boolean streamingExport;
+
+    @Activate
+    @Modified
+    protected void activate(Config config) {
+        this.streamingExport = config.streaming_export();
+    }
+
     @Override
     protected void doGet(@NotNull SlingHttpServletRequest request, @NotNull SlingHttpServletResponse response) throws ServletException, IOException {
         final RequestPathInfo requestPathInfo = request.getRequestPathInfo();
@@ -95,71 +130,108 @@ public class DialogConversionServlet extends SlingAllMethodsServlet {
         }
         if (Objects.equals(selector, "package")) {
             final ResourceResolver resolver = request.getResourceResolver();
-            final Iterable<Resource> convertibleResources = getConvertibleResources(resolver, searchRoots)::iterator;
-            final List<PathFilterSet> convertedPaths = StreamSupport.stream(convertibleResources.spliterator(), false)
-                    .map(ConsoleItem::new)
+            final DefaultWorkspaceFilter filter = new DefaultWorkspaceFilter();
+            final List<Resource> convertibleResources = index.getConvertibleResources(resolver, searchRoots)
+                    .collect(Collectors.toList());
+            consoleRows.precompute(resolver, convertibleResources, index, searchRoots, null);
+            convertibleResources.stream()
+                    .map(convertibleResource -> new ConsoleItem(convertibleResource, null, null, consoleRows))
                     .filter(ConsoleItem::isConverted)
                     .map(ConsoleItem::getTouchPath)
                     .map(PathFilterSet::new)
-                    .collect(Collectors.toList());
+                    .forEach(filter::add);
 
-            String packagePath = null;
             final Session session = Optional.ofNullable(resolver.adaptTo(Session.class))
                     .orElseThrow(() -> new NullPointerException("Cannot adapt ResourceResolver to Session"));
+            response.setHeader("Content-Disposition",
+                    "attachment; filename=\"" + resource.getName() + "-converted-dialogs.zip\"");
+            response.setContentType("application/zip");
             try {
                 final JcrPackageManager jcrPackageManager = packaging.getPackageManager(session);
-                final JcrPackage jcrPackage = jcrPackageManager.create("aem-touch-ui-support", "converted");
-                final Node node = jcrPackage.getNode();
-                packagePath = node == null ? null : node.getPath();
-                final JcrPackageDefinition definition = Optional.ofNullable(jcrPackage.getDefinition())
-                        .orElseThrow(() -> new NullPointerException("JCR Package definition is null"));
-                final DefaultWorkspaceFilter filter = new DefaultWorkspaceFilter();
-                convertedPaths.forEach(filter::add);
-                definition.setFilter(filter, false);
-                session.save();
-
-                response.setHeader("Content-Disposition",
-                        "attachment; filename=\"" + resource.getName() + "-converted-dialogs.zip\"");
-                response.setContentType("application/zip");
-                jcrPackageManager.assemble(definition, null, response.getOutputStream());
+                if (streamingExport) {
+                    exportPackage(jcrPackageManager, session, filter, response.getOutputStream());
+                } else {
+                    assemblePackage(jcrPackageManager, session, filter, response.getOutputStream());
+                }
             } catch (RepositoryException | PackageException e) {
                 throw new RuntimeException(e);
-            } finally {
-                if (packagePath != null) {
-                    try {
-                        session.getNode(packagePath).remove();
-                        session.save();
-                    } catch (RepositoryException e) {
-                        LOG.error("Failed to remove temporary package '{}'", packagePath);
-                    }
-                }
             }
         } else {
             super.doGet(request, response);
         }
     }
 
+    /**
+     * Writes a package containing the given filter directly to the output stream, without
+     * persisting a package in the repository.
+     */
+    private void exportPackage(@NotNull JcrPackageManager jcrPackageManager, @NotNull Session session,
+            @NotNull DefaultWorkspaceFilter filter, @NotNull OutputStream out)
+            throws RepositoryException, IOException, PackageException {
+        final Properties packageProperties = new Properties();
+        packageProperties.setProperty(PackageProperties.NAME_GROUP, PACKAGE_GROUP);
+        packageProperties.setProperty(PackageProperties.NAME_NAME, PACKAGE_NAME);
+        packageProperties.setProperty(PackageProperties.NAME_VERSION, "");
+        final DefaultMetaInf metaInf = new DefaultMetaInf();
+        metaInf.setFilter(filter);
+        metaInf.setProperties(packageProperties);
+
+        final ExportOptions options = new ExportOptions();
+        options.setMetaInf(metaInf);
+        jcrPackageManager.assemble(session, options, out);
+    }
+
+    /**
+     * Creates a temporary package in the repository, writes it to the output stream and removes it.
+     */
+    private void assemblePackage(@NotNull JcrPackageManager jcrPackageManager, @NotNull Session session,
+            @NotNull DefaultWorkspaceFilter filter, @NotNull OutputStream out)
+            throws RepositoryException, IOException, PackageException {
+        String packagePath = null;
+        try {
+            final JcrPackage jcrPackage = jcrPackageManager.create(PACKAGE_GROUP, PACKAGE_NAME);
+            final Node node = jcrPackage.getNode();
+            packagePath = node == null ? null : node.getPath();
+            final JcrPackageDefinition definition = Optional.ofNullable(jcrPackage.getDefinition())
+                    .orElseThrow(() -> new NullPointerException("JCR Package definition is null"));
+            definition.setFilter(filter, false);
+            session.save();
+            jcrPackageManager.assemble(definition, null, out);
+        } finally {
+            if (packagePath != null) {
+                try {
+                    session.getNode(packagePath).remove();
+                    session.save();
+                } catch (RepositoryException e) {
+                    LOG.error("Failed to remove temporary package '{}'", packagePath);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts an asynchronous conversion job, or resumes an interrupted one, and responds with a
+     * JSON object containing the job's ID and the URL where its status can be polled.
+     */
     @Override
     protected void doPost(@NotNull SlingHttpServletRequest request, @NotNull SlingHttpServletResponse response) throws IOException {
-        
+
         final Set<String> paths = Optional.ofNullable(request.getRequestParameters(PARAM_PATHS))
                 .map(Arrays::stream)
                 .orElseGet(Stream::empty)
                 .map(RequestParameter::getString)
                 .collect(Collectors.toSet());
 
-        final String[] searchRoots = ConversionConfig.getScope(request.getResource());
-        final List<String> orderedPaths = getConvertibleResources(request.getResourceResolver(), searchRoots)
-                .map(Resource::getPath)
-                .filter(paths::contains)
-                .collect(Collectors.toList());
+        final String resumeJobId = Optional.ofNullable(request.getRequestParameter(PARAM_RESUME))
+                .map(RequestParameter::getString)
+                .orElse(null);
 
         boolean force = Optional.ofNullable(request.getRequestParameter(PARAM_FORCE))
                 .map(RequestParameter::getString)
                 .map(Boolean::parseBoolean)
                 .orElse(false);
 
-        if (paths.isEmpty()) {
+        if (paths.isEmpty() && resumeJobId == null) {
             LOG.warn("Missing or empty parameter '" + PARAM_PATHS + "'");
             response.setContentType("text/plain");
             response.getWriter().println("Missing or empty parameter '" + PARAM_PATHS + "'");
@@ -167,42 +239,44 @@ public class DialogConversionServlet extends SlingAllMethodsServlet {
             return;
         }
 
-        if (dialogConverter == null) {
+        if (!conversionJobManager.isConverterAvailable()) {
             response.setContentType("text/plain");
             response.getWriter().println("No DialogConverter is available");
             response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
             return;
         }
 
+        final ResourceResolver resolver = request.getResourceResolver();
+        final String jobId;
         try {
-            final ResourceResolver resolver = request.getResourceResolver();
-            Collection<DialogConverter.Result> results = dialogConverter.convert(resolver, orderedPaths, force);
-
-            response.setContentType("text/plain");
-            final PrintWriter writer = response.getWriter();
-            for (DialogConverter.Result result : results) {
-                final String error = result.getError();
-                if (error != null) {
-                    // TODO: persist error messages in order to display them in UI
-                    writer.append("Failed to convert ").println(result.getPath());
-                    final String[] lines = StringUtils.split(error, "\n");
-                    for (String line : lines) {
-                        writer.append("    ").println(line);
-                    }
-                } else {
-                    writer.append("Successfully converted ").println(result.getPath());
+            if (resumeJobId != null) {
+                if (!conversionJobManager.resume(resolver, resumeJobId)) {
+                    response.sendError(HttpServletResponse.SC_NOT_FOUND, "No interrupted job '" + resumeJobId + "' found");
+                    return;
                 }
+                jobId = resumeJobId;
+            } else {
+                final String[] searchRoots = ConversionConfig.getScope(request.getResource());
+                final List<String> orderedPaths = index.getConvertibleResources(resolver, searchRoots)
+                        .map(Resource::getPath)
+                        .filter(paths::contains)
+                        .collect(Collectors.toList());
+                jobId = conversionJobManager.start(resolver, orderedPaths, force);
             }
-        } catch (Exception e) {
-            response.setContentType("text/plain");
-            Throwable ex = e;
-            LOG.warn("There was a problem during dialog conversion: ", e);
-            final PrintWriter writer = response.getWriter();
-            writer.println("There was an error (see logs for stack trace):");
-            while (ex != null) {
-                writer.println(ex.getMessage());
-                ex = ex.getCause();
-            }
+        } catch (PersistenceException | LoginException e) {
+            LOG.warn("Failed to start dialog conversion", e);
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Failed to start dialog conversion: " + e.getMessage());
+            return;
         }
+
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        final JsonObject json = Json.createObjectBuilder()
+                .add("id", jobId)
+                .add("statusUrl", request.getResource().getPath() + "." + ConversionJobStatusServlet.SELECTOR
+                        + ".json?" + PARAM_JOB + "=" + jobId)
+                .build();
+        Json.createWriter(response.getWriter()).writeObject(json);
     }
 }
@@ -0,0 +1,66 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+
+/**
+ * Service users of this bundle. The service user mappings and the users' permissions are
+ * installed by the content package.
+ * <br>
+ * State that is shared by all users, e.g. indexes and caches, is built with a service user,
+ * so that it does not depend on the permissions of whichever user happens to build it. Such
+ * state must only hold paths or names, which are resolved with the current user's resolver.
+ */
+public final class ServiceResolvers {
+
+    /**
+     * Sub-service with read access to {@code /apps}, {@code /libs}, {@code /conf}, {@code /content}
+     * and {@code /etc}.
+     */
+    public static final String READER = "reader";
+
+    /**
+     * Sub-service with write access to {@code /var/distilledcode}.
+     */
+    public static final String WRITER = "writer";
+
+    /**
+     * Sub-service allowed to modify properties below {@code /content/dam}.
+     */
+    public static final String METADATA_WRITER = "metadata-writer";
+
+    private ServiceResolvers() {
+    }
+
+    /**
+     * @param factory The resource resolver factory.
+     * @param subService The sub-service to log in as, e.g. {@link #READER}.
+     * @return a new resolver that must be closed by the caller
+     * @throws LoginException if the sub-service is not mapped to a user
+     */
+    @NotNull
+    public static ResourceResolver open(@NotNull ResourceResolverFactory factory, @NotNull String subService)
+            throws LoginException {
+        return factory.getServiceResourceResolver(
+                Collections.singletonMap(ResourceResolverFactory.SUBSERVICE, subService));
+    }
+}
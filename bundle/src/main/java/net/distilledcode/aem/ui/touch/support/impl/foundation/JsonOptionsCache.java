@@ -0,0 +1,276 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.foundation;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Bounded cache for the options retrieved by the {@link JsonOptionsDataSourceFactory}. Entries
+ * expire after a configurable time-to-live, the least recently used entries are evicted once
+ * the maximum number of entries is reached and the whole cache is invalidated whenever a
+ * resource below one of the configured paths changes. Only successfully parsed, non-empty option
+ * lists are cached, so that a transient error or an error response does not hide the options
+ * until the entry expires.
+ * <br>
+ * Entries are keyed by the interpolated URL and the ID of the user the options were retrieved
+ * for, because the JSON is rendered with the user's permissions.
+ */
+@Component(
+        service = {JsonOptionsCache.class, ResourceChangeListener.class},
+        property = {
+                // defaults, must be kept in sync with Config#resource_paths
+                ResourceChangeListener.PATHS + "=/apps",
+                ResourceChangeListener.PATHS + "=/conf",
+                ResourceChangeListener.PATHS + "=/etc"
+        }
+)
+@Designate(ocd = JsonOptionsCache.Config.class)
+public class JsonOptionsCache implements ResourceChangeListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JsonOptionsCache.class);
+
+    @ObjectClassDefinition(name = "Distilled Code ~ JSON Options Cache")
+    @interface Config {
+        @AttributeDefinition(description = "Maximum number of cached option lists. A value of 0 disables caching.")
+        int max_entries() default 200;
+
+        @AttributeDefinition(description = "Time in seconds after which cached option lists expire.")
+        long ttl_seconds() default 300;
+
+        @AttributeDefinition(description = "Regular expression matching an interpolated URL followed by \" :: \" " +
+                "(space, 2x colon, space) followed by the time-to-live in seconds for matching URLs. The first " +
+                "matching expression wins. A time-to-live of 0 disables caching. E.g \"/bin/products.*\\.json :: 3600\"")
+        String[] ttl_overrides() default {};
+
+        @AttributeDefinition(description = "The cache is invalidated if a resource below one of these paths changes.")
+        String[] resource_paths() default {"/apps", "/conf", "/etc"};
+    }
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    // guarded by entries
+    private long generation;
+
+    private volatile int maxEntries;
+
+    private volatile long defaultTtlMillis;
+
+    private volatile List<TtlOverride> ttlOverrides = Collections.emptyList();
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > maxEntries) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    @Activate
+    @Modified
+    public void activate(Config config) {
+        this.maxEntries = Math.max(0, config.max_entries());
+        this.defaultTtlMillis = TimeUnit.SECONDS.toMillis(Math.max(0, config.ttl_seconds()));
+        this.ttlOverrides = Arrays.stream(Optional.ofNullable(config.ttl_overrides()).orElse(new String[0]))
+                .map(TtlOverride::create)
+                .collect(Collectors.collectingAndThen(Collectors.toList(), Collections::unmodifiableList));
+        invalidate();
+    }
+
+    @Deactivate
+    public void deactivate() {
+        invalidate();
+    }
+
+    @Override
+    public void onChange(@NotNull List<ResourceChange> changes) {
+        LOG.debug("Invalidating cache due to changes, e.g. at '{}'", changes.isEmpty() ? null : changes.get(0).getPath());
+        invalidate();
+    }
+
+    /**
+     * Returns the options cached for the given URL and resolver or computes and caches them.
+     * The supplied options are always materialized, because the supplier may return options that
+     * can only be iterated once. They are only cached if they are not empty and were parsed
+     * without errors. A {@code null} value returned by the supplier is never cached.
+     *
+     * @param resolver The resolver the options are retrieved with.
+     * @param url The interpolated URL of the options.
+     * @param optionsSupplier Computes the options in case of a cache miss.
+     * @return the cached or computed options
+     */
+    @Nullable
+    public Iterable<JsonOptionsDataSourceFactory.Option> get(@NotNull ResourceResolver resolver, @NotNull String url,
+            @NotNull Supplier<Iterable<JsonOptionsDataSourceFactory.Option>> optionsSupplier) {
+        final long ttlMillis = getTtlMillis(url);
+        if (maxEntries == 0 || ttlMillis == 0) {
+            final Iterable<JsonOptionsDataSourceFactory.Option> iterable = optionsSupplier.get();
+            if (iterable == null) {
+                return null;
+            }
+            final List<JsonOptionsDataSourceFactory.Option> options = new ArrayList<>();
+            iterable.forEach(options::add);
+            return options;
+        }
+
+        final String key = resolver.getUserID() + ":" + url;
+        final long now = System.currentTimeMillis();
+        final long generation;
+        synchronized (entries) {
+            final Entry entry = entries.get(key);
+            if (entry != null && entry.expires > now) {
+                hits.incrementAndGet();
+                return entry.options;
+            }
+            generation = this.generation;
+        }
+
+        misses.incrementAndGet();
+        final Iterable<JsonOptionsDataSourceFactory.Option> iterable = optionsSupplier.get();
+        if (iterable == null) {
+            return null;
+        }
+
+        final List<JsonOptionsDataSourceFactory.Option> options = new ArrayList<>();
+        final Iterator<JsonOptionsDataSourceFactory.Option> iterator = iterable.iterator();
+        iterator.forEachRemaining(options::add);
+        if (options.isEmpty() || iterator instanceof JsonOptionsIterator && ((JsonOptionsIterator) iterator).isFailed()) {
+            LOG.debug("Not caching empty or incomplete options from '{}'", url);
+            return options;
+        }
+        synchronized (entries) {
+            // don't cache options that may have been computed before an invalidation
+            if (generation == this.generation) {
+                entries.put(key, new Entry(Collections.unmodifiableList(options), now + ttlMillis));
+            }
+        }
+        return options;
+    }
+
+    /**
+     * @param resolver The resolver the options are retrieved with.
+     * @param url The interpolated URL of the options.
+     * @return {@code true} if unexpired options are cached for the given URL and resolver
+     */
+    public boolean contains(@NotNull ResourceResolver resolver, @NotNull String url) {
+        final String key = resolver.getUserID() + ":" + url;
+        synchronized (entries) {
+            final Entry entry = entries.get(key);
+            return entry != null && entry.expires > System.currentTimeMillis();
+        }
+    }
+
+    public void invalidate() {
+        synchronized (entries) {
+            entries.clear();
+            generation++;
+        }
+        LOG.debug("Invalidated cache, {}", this);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private long getTtlMillis(String url) {
+        for (TtlOverride override : ttlOverrides) {
+            if (override.regexp.matcher(url).matches()) {
+                return override.ttlMillis;
+            }
+        }
+        return defaultTtlMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "JsonOptionsCache{hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "}";
+    }
+
+    private static class Entry {
+
+        private final List<JsonOptionsDataSourceFactory.Option> options;
+
+        private final long expires;
+
+        private Entry(List<JsonOptionsDataSourceFactory.Option> options, long expires) {
+            this.options = options;
+            this.expires = expires;
+        }
+    }
+
+    private static class TtlOverride {
+
+        private final Pattern regexp;
+
+        private final long ttlMillis;
+
+        public static TtlOverride create(String config) {
+            final String[] parts = config.split(" :: ");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid configuration \"" + config + "\"");
+            }
+            final Pattern regexp = Pattern.compile(parts[0].trim());
+            final long ttlSeconds = Long.parseLong(parts[1].trim());
+            return new TtlOverride(regexp, TimeUnit.SECONDS.toMillis(Math.max(0, ttlSeconds)));
+        }
+
+        private TtlOverride(Pattern regexp, long ttlMillis) {
+            this.regexp = regexp;
+            this.ttlMillis = ttlMillis;
+        }
+    }
+}
@@ -17,16 +17,16 @@ package net.distilledcode.aem.ui.touch.support.impl.foundation;
 
 import com.adobe.granite.ui.components.ExpressionHelper;
 import com.adobe.granite.ui.components.ds.ValueMapResource;
-import net.distilledcode.aem.ui.touch.support.impl.requestprocessing.SyntheticHttpServletRequest;
-import net.distilledcode.aem.ui.touch.support.impl.requestprocessing.SyntheticHttpServletResponse;
+import net.distilledcode.aem.ui.touch.support.api.ui.DialogUtil;
+import net.distilledcode.aem.ui.touch.support.impl.requestprocessing.InternalRequestExecutor;
+import net.distilledcode.aem.ui.touch.support.impl.requestprocessing.InternalResponse;
 import net.distilledcode.aem.ui.touch.support.spi.granite.ui.datasource.DataSourceFactory;
+import org.apache.commons.collections4.IteratorUtils;
 import org.apache.sling.api.SlingHttpServletRequest;
-import org.apache.sling.api.request.RequestProgressTracker;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
-import org.apache.sling.engine.SlingRequestProcessor;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.osgi.service.component.annotations.Component;
@@ -35,35 +35,40 @@ import org.osgi.service.component.annotations.ReferencePolicyOption;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.json.Json;
-import javax.json.JsonArray;
-import javax.json.JsonObject;
-import javax.json.JsonReader;
-import javax.json.stream.JsonParsingException;
-import javax.servlet.ServletException;
-import javax.servlet.http.HttpServletRequest;
-import java.io.ByteArrayOutputStream;
+import javax.servlet.ServletRequest;
 import java.io.IOException;
-import java.io.StringReader;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @SuppressWarnings("unused")
 @Component(
         service = DataSourceFactory.class,
         property = {
-                DataSourceFactory.DATASOURCE_RESOURCE_TYPES + "=distilledcode/cq/wcm/foundation/json"
+                DataSourceFactory.DATASOURCE_RESOURCE_TYPES + "=" + JsonOptionsDataSourceFactory.RESOURCE_TYPE
         }
 )
 public class JsonOptionsDataSourceFactory extends DataSourceFactory {
 
     private static final Logger LOG = LoggerFactory.getLogger(JsonOptionsDataSourceFactory.class);
 
+    public static final String RESOURCE_TYPE = "distilledcode/cq/wcm/foundation/json";
+
+    private static final Set<String> DIALOG_NAMES = new HashSet<>(Arrays.asList("cq:dialog", "cq:design_dialog"));
+
+    private static final String PREFETCHED_ATTR = JsonOptionsDataSourceFactory.class.getName() + ".prefetched";
+
     @Reference(policyOption = ReferencePolicyOption.GREEDY)
-    private SlingRequestProcessor requestProcessor;
+    private InternalRequestExecutor requestExecutor;
 
+    @Reference(policyOption = ReferencePolicyOption.GREEDY)
+    private JsonOptionsCache cache;
 
     @Override
     @Nullable
@@ -79,47 +84,137 @@ public class JsonOptionsDataSourceFactory extends DataSourceFactory {
         final String interpolatedUrl = ex.getString(url);
 
         final ResourceResolver resolver = request.getResourceResolver();
-        final HttpServletRequest syntheticRequest = SyntheticHttpServletRequest.builder(interpolatedUrl).build();
-        final Object requestProgressTracker = request.getAttribute(RequestProgressTracker.class.getName());
-        if (requestProgressTracker != null) {
-            syntheticRequest.setAttribute(RequestProgressTracker.class.getName(), requestProgressTracker);
+        final Iterable<Option> options = cache.get(resolver, interpolatedUrl, () -> retrieveOptions(request, dsResource, ex, interpolatedUrl));
+        if (options == null) {
+            return null;
         }
-        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        final SyntheticHttpServletResponse syntheticResponse = new SyntheticHttpServletResponse(outputStream);
+
+        return () -> IteratorUtils.transformedIterator(options.iterator(), option -> {
+            final ValueMapDecorator props = new ValueMapDecorator(new HashMap<>());
+            props.put("text", option.getText());
+            props.put("value", option.getValue());
+            if (Objects.equals(option.getValue(), selectedValue)) {
+                props.put("selected", true);
+            }
+            return new ValueMapResource(resolver, "", null, props);
+        });
+    }
+
+    /**
+     * Retrieves the options by means of an internal request. The returned {@code Iterable} parses
+     * the options lazily from the buffered response and can only be iterated once.
+     */
+    @Nullable
+    private Iterable<Option> retrieveOptions(@NotNull SlingHttpServletRequest request, @NotNull Resource dsResource,
+                                             @NotNull ExpressionHelper ex, @NotNull String interpolatedUrl) {
         try {
-            requestProcessor.processRequest(syntheticRequest, syntheticResponse, resolver);
-            syntheticResponse.flushBuffer();
-
-            final List<Resource> resources = new ArrayList<>();
-            final int statusCode = syntheticResponse.getStatusCode();
-            if (200 <= statusCode && statusCode < 300) {
-                final String outputJson = outputStream.toString("UTF-8");
-                try (final JsonReader reader = Json.createReader(new StringReader(outputJson))) {
-                    try {
-                        final JsonArray options = reader.readArray();
-                        for (int i = 0; i < options.size(); i++) {
-                            final JsonObject option = options.getJsonObject(i);
-                            final ValueMapDecorator props = new ValueMapDecorator(new HashMap<>());
-                            props.put("text", option.getString("text"));
-                            final String value = option.getString("value");
-                            props.put("value", value);
-                            if (Objects.equals(value, selectedValue)) {
-                                props.put("selected", true);
-                            }
-                            resources.add(new ValueMapResource(resolver, "", null, props));
-                        }
-                    } catch (JsonParsingException e) {
-                        LOG.warn("Failed to parse json '{}'", outputJson.substring(0, Math.min(outputJson.length(), 256)), e);
+            final CompletableFuture<InternalResponse> prefetched = prefetch(request, dsResource, ex).remove(interpolatedUrl);
+            final InternalResponse response = prefetched != null
+                    ? requestExecutor.await(prefetched)
+                    : requestExecutor.execute(request, interpolatedUrl);
+
+            if (response.isSuccess()) {
+                // the body is read once, the parser closes the stream and thereby releases the response
+                final AtomicBoolean iterated = new AtomicBoolean();
+                return () -> {
+                    if (!iterated.compareAndSet(false, true)) {
+                        throw new IllegalStateException("The options of '" + interpolatedUrl + "' were already read");
                     }
-                }
+                    return new JsonOptionsIterator(interpolatedUrl, response.openStream());
+                };
             } else {
-                LOG.warn("Retrieving '{}' returned response with non 2xx status code: '{}'", interpolatedUrl, statusCode);
+                response.close();
+                LOG.warn("Retrieving '{}' returned response with non 2xx status code: '{}'", interpolatedUrl, response.getStatusCode());
             }
-            return resources;
-        } catch (ServletException | IOException e) {
+            // empty options are not cached, hence the URL is requested again by the next dialog
+            return Collections.emptyList();
+        } catch (IOException e) {
             LOG.warn("Failed to retrieve or process JSON from {}", interpolatedUrl,  e);
         }
 
         return null;
     }
+
+    /**
+     * When the first JSON datasource of a dialog is rendered, the options of all other JSON datasources
+     * in the same dialog that are not cached yet are requested concurrently. Subsequent datasources then
+     * only need to wait for their response.
+     *
+     * @return the prefetched responses that have not been consumed yet, keyed by their interpolated URL
+     */
+    @NotNull
+    private Map<String, CompletableFuture<InternalResponse>> prefetch(@NotNull SlingHttpServletRequest request,
+            @NotNull Resource dsResource, @NotNull ExpressionHelper ex) {
+        @SuppressWarnings("unchecked")
+        Map<String, CompletableFuture<InternalResponse>> prefetched =
+                (Map<String, CompletableFuture<InternalResponse>>) request.getAttribute(PREFETCHED_ATTR);
+        if (prefetched != null) {
+            return prefetched;
+        }
+
+        prefetched = new HashMap<>();
+        request.setAttribute(PREFETCHED_ATTR, prefetched);
+        final Resource dialog = findDialog(dsResource);
+        if (dialog == null || !requestExecutor.isAsync()) {
+            return prefetched;
+        }
+
+        final ResourceResolver resolver = request.getResourceResolver();
+        final Iterable<Resource> datasources = DialogUtil.streamDescendants(dialog)
+                .filter(res -> res.isResourceType(RESOURCE_TYPE))
+                .filter(res -> !Objects.equals(res.getPath(), dsResource.getPath()))::iterator;
+        for (Resource datasource : datasources) {
+            final String url = datasource.getValueMap().get("url", String.class);
+            final String interpolatedUrl = url == null ? null : ex.getString(url);
+            if (interpolatedUrl != null && !prefetched.containsKey(interpolatedUrl) && !cache.contains(resolver, interpolatedUrl)) {
+                LOG.debug("Prefetching '{}' for '{}'", interpolatedUrl, datasource.getPath());
+                prefetched.put(interpolatedUrl, requestExecutor.submit(resolver, interpolatedUrl));
+            }
+        }
+        return prefetched;
+    }
+
+    /**
+     * Gives up the prefetched responses of the given request that have not been consumed, so that
+     * their buffers are released. Called when the request ends.
+     */
+    static void releasePrefetched(@NotNull ServletRequest request) {
+        @SuppressWarnings("unchecked")
+        final Map<String, CompletableFuture<InternalResponse>> prefetched =
+                (Map<String, CompletableFuture<InternalResponse>>) request.getAttribute(PREFETCHED_ATTR);
+        if (prefetched != null) {
+            request.removeAttribute(PREFETCHED_ATTR);
+            prefetched.values().forEach(InternalRequestExecutor::discard);
+        }
+    }
+
+    @Nullable
+    private static Resource findDialog(@NotNull Resource resource) {
+        for (Resource candidate = resource; candidate != null; candidate = candidate.getParent()) {
+            if (DIALOG_NAMES.contains(candidate.getName())) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    static final class Option {
+
+        private final String text;
+
+        private final String value;
+
+        Option(String text, String value) {
+            this.text = text;
+            this.value = value;
+        }
+
+        String getText() {
+            return text;
+        }
+
+        String getValue() {
+            return value;
+        }
+    }
 }
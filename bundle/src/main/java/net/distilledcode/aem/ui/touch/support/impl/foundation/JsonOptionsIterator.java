@@ -0,0 +1,165 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.foundation;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Pull-based iterator over a JSON array of options, e.g. {@code [{"text": "One", "value": "1"}, ...]}.
+ * Options are parsed one at a time while the iterator advances, hence only the current option is
+ * held in memory. Parsing stops silently (after logging a warning) if malformed JSON is encountered,
+ * i.e. the options parsed up to that point are returned and {@link #isFailed()} returns {@code true}.
+ * Entries that are not objects or lack a "text" or "value" are skipped.
+ */
+class JsonOptionsIterator implements Iterator<JsonOptionsDataSourceFactory.Option> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JsonOptionsIterator.class);
+
+    private final String url;
+
+    private final JsonParser parser;
+
+    private JsonOptionsDataSourceFactory.Option next;
+
+    private boolean done;
+
+    private boolean failed;
+
+    JsonOptionsIterator(@NotNull String url, @NotNull InputStream json) {
+        this.url = url;
+        this.parser = Json.createParserFactory(null).createParser(json, StandardCharsets.UTF_8);
+        try {
+            if (!parser.hasNext() || parser.next() != Event.START_ARRAY) {
+                LOG.warn("Expected JSON array of options from '{}'", url);
+                failed = true;
+                close();
+            }
+        } catch (JsonException e) {
+            LOG.warn("Failed to parse json from '{}'", url, e);
+            failed = true;
+            close();
+        }
+    }
+
+    /**
+     * @return {@code true} if parsing stopped because of malformed JSON
+     */
+    boolean isFailed() {
+        return failed;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !done) {
+            next = advance();
+        }
+        return next != null;
+    }
+
+    @Override
+    public JsonOptionsDataSourceFactory.Option next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final JsonOptionsDataSourceFactory.Option option = next;
+        next = null;
+        return option;
+    }
+
+    private JsonOptionsDataSourceFactory.Option advance() {
+        try {
+            while (parser.hasNext()) {
+                final Event event = parser.next();
+                if (event == Event.END_ARRAY) {
+                    break;
+                }
+                if (event == Event.START_OBJECT) {
+                    final JsonOptionsDataSourceFactory.Option option = readOption();
+                    if (option != null) {
+                        return option;
+                    }
+                } else {
+                    skipValue(event);
+                }
+            }
+        } catch (JsonException | NoSuchElementException e) {
+            LOG.warn("Failed to parse json from '{}'", url, e);
+            failed = true;
+        }
+        close();
+        return null;
+    }
+
+    private JsonOptionsDataSourceFactory.Option readOption() {
+        String text = null;
+        String value = null;
+        Event event;
+        while ((event = parser.next()) != Event.END_OBJECT) {
+            if (event == Event.KEY_NAME) {
+                final String key = parser.getString();
+                final Event valueEvent = parser.next();
+                if (valueEvent == Event.VALUE_STRING || valueEvent == Event.VALUE_NUMBER) {
+                    if ("text".equals(key)) {
+                        text = parser.getString();
+                    } else if ("value".equals(key)) {
+                        value = parser.getString();
+                    }
+                } else {
+                    skipValue(valueEvent);
+                }
+            }
+        }
+        if (text == null || value == null) {
+            LOG.debug("Skipping option without text or value from '{}'", url);
+            return null;
+        }
+        return new JsonOptionsDataSourceFactory.Option(text, value);
+    }
+
+    private void skipValue(Event event) {
+        if (event == Event.START_OBJECT || event == Event.START_ARRAY) {
+            int depth = 1;
+            while (depth > 0) {
+                final Event nested = parser.next();
+                if (nested == Event.START_OBJECT || nested == Event.START_ARRAY) {
+                    depth++;
+                } else if (nested == Event.END_OBJECT || nested == Event.END_ARRAY) {
+                    depth--;
+                }
+            }
+        }
+    }
+
+    private void close() {
+        done = true;
+        try {
+            parser.close();
+        } catch (JsonException e) {
+            LOG.debug("Failed to close parser", e);
+        }
+    }
+}
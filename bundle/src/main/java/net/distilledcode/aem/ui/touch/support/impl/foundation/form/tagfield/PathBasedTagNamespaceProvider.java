@@ -28,15 +28,18 @@ import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.Designate;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.TreeSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 @Component(service = TagNamespaceProvider.class, configurationPolicy = ConfigurationPolicy.REQUIRE)
 @Designate(ocd = PathBasedTagNamespaceProvider.Config.class)
@@ -48,17 +51,20 @@ public class PathBasedTagNamespaceProvider implements TagNamespaceProvider {
                 "followed by a comma separated list of namespaces (may refer to regexp " +
                 "groups). E.g \"/content/([^/]+).* :: generic,$1\"")
         String[] namespace_mappings() default {};
+
+        @AttributeDefinition(description = "Maximum number of paths for which the resolved namespaces are cached.")
+        int cache_size() default 1000;
     }
 
-    private List<Mapping> mappings;
+    private static final String META_CHARACTERS = ".[]{}()*+?^$|\\";
+
+    private volatile Mappings mappings;
 
     @Activate
     @Modified
     public void activate(Config config) {
         final String[] mappings = Optional.ofNullable(config.namespace_mappings()).orElse(new String[0]);
-        this.mappings = Arrays.stream(mappings)
-                .map(Mapping::create)
-                .collect(Collectors.collectingAndThen(Collectors.toList(), Collections::unmodifiableList));
+        this.mappings = new Mappings(mappings, Math.max(0, config.cache_size()));
     }
 
     @Deactivate
@@ -69,43 +75,157 @@ public class PathBasedTagNamespaceProvider implements TagNamespaceProvider {
     @NotNull
     @Override
     public String[] getNamespaces(@NotNull SlingHttpServletRequest request, @NotNull String path, @NotNull ValueMap config) {
-        final Collection<String> namespaces = new TreeSet<>();
-        for (Mapping mapping : mappings) {
-            final Matcher matcher = mapping.getRegexp().matcher(path);
-            if (matcher.matches()) {
-                for (String namespace : mapping.getNamespaces()) {
-                    namespaces.add(matcher.replaceAll(namespace));
+        return mappings.getNamespaces(path).clone();
+    }
+
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
+    /**
+     * The configured mappings, indexed by the literal prefix of their regular expressions. Only
+     * the mappings whose prefix matches the beginning of a path are evaluated. The namespaces
+     * resolved for a path are kept in an LRU cache.
+     */
+    static class Mappings {
+
+        private final PrefixNode root = new PrefixNode();
+
+        private final Map<String, String[]> cache;
+
+        Mappings(String[] configs, int cacheSize) {
+            for (int i = 0; i < configs.length; i++) {
+                final Mapping mapping = Mapping.create(i, configs[i]);
+                PrefixNode node = root;
+                for (char c : mapping.getPrefix().toCharArray()) {
+                    node = node.children.computeIfAbsent(c, key -> new PrefixNode());
+                }
+                node.mappings.add(mapping);
+            }
+            this.cache = Collections.synchronizedMap(new LinkedHashMap<String, String[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+                    return size() > cacheSize;
+                }
+            });
+        }
+
+        String[] getNamespaces(String path) {
+            final String[] cached = cache.get(path);
+            if (cached != null) {
+                return cached;
+            }
+            final String[] namespaces = computeNamespaces(path);
+            cache.put(path, namespaces);
+            return namespaces;
+        }
+
+        private String[] computeNamespaces(String path) {
+            // collect the candidates along the path, i.e. the mappings whose prefix the path starts with
+            final List<Mapping> candidates = new ArrayList<>(root.mappings);
+            PrefixNode node = root;
+            for (int i = 0; i < path.length() && node != null; i++) {
+                node = node.children.get(path.charAt(i));
+                if (node != null) {
+                    candidates.addAll(node.mappings);
                 }
             }
+            candidates.sort((a, b) -> Integer.compare(a.getIndex(), b.getIndex()));
+
+            final Collection<String> namespaces = new TreeSet<>();
+            for (Mapping mapping : candidates) {
+                final Matcher matcher = mapping.getRegexp().matcher(path);
+                if (matcher.matches()) {
+                    for (String namespace : mapping.getNamespaces()) {
+                        namespaces.add(matcher.replaceAll(namespace));
+                    }
+                }
+            }
+            return namespaces.toArray(new String[0]);
+        }
+    }
+
+    /**
+     * Returns the literal text every path matching the regular expression starts with. The
+     * prefix is determined conservatively, i.e. it is empty for expressions with alternatives
+     * and it ends before the first character that is not matched literally.
+     */
+    static String getLiteralPrefix(String regexp) {
+        if (regexp.indexOf('|') != -1) {
+            return "";
         }
-        return namespaces.toArray(new String[0]);
+        final StringBuilder prefix = new StringBuilder();
+        int i = regexp.startsWith("^") ? 1 : 0;
+        while (i < regexp.length()) {
+            final char c = regexp.charAt(i);
+            final char literal;
+            if (c == '\\' && i + 1 < regexp.length()
+                    && META_CHARACTERS.indexOf(regexp.charAt(i + 1)) != -1) {
+                literal = regexp.charAt(i + 1);
+                i += 2;
+            } else if (META_CHARACTERS.indexOf(c) == -1) {
+                literal = c;
+                i++;
+            } else {
+                break;
+            }
+            // a quantifier makes the preceding character optional
+            if (i < regexp.length() && "?*{".indexOf(regexp.charAt(i)) != -1) {
+                break;
+            }
+            prefix.append(literal);
+        }
+        return prefix.toString();
+    }
+
+    private static class PrefixNode {
+
+        private final Map<Character, PrefixNode> children = new HashMap<>();
+
+        private final List<Mapping> mappings = new ArrayList<>();
     }
 
     private static class Mapping {
 
+        private final int index;
+
         private final Pattern regexp;
 
+        private final String prefix;
+
         private final String[] namespaces;
 
-        public static Mapping create(String config) {
+        public static Mapping create(int index, String config) {
             final String[] parts = config.split(" :: ");
             if (parts.length != 2) {
                 throw new IllegalArgumentException("Invalid configuration \"" + config + "\"");
             }
             final Pattern regexp = Pattern.compile(parts[0].trim());
             final String[] namespaces = parts[1].split(",");
-            return new Mapping(regexp, Arrays.stream(namespaces).map(String::trim).toArray(String[]::new));
+            return new Mapping(index, regexp, getLiteralPrefix(regexp.pattern()),
+                    Arrays.stream(namespaces).map(String::trim).toArray(String[]::new));
         }
 
-        private Mapping(Pattern regexp, String[] namespaces) {
+        private Mapping(int index, Pattern regexp, String prefix, String[] namespaces) {
+            this.index = index;
             this.regexp = regexp;
+            this.prefix = prefix;
             this.namespaces = namespaces;
         }
 
+        public int getIndex() {
+            return index;
+        }
+
         public Pattern getRegexp() {
             return regexp;
         }
 
+        public String getPrefix() {
+            return prefix;
+        }
+
         public String[] getNamespaces() {
             return namespaces;
         }
@@ -37,14 +37,18 @@ import org.osgi.service.component.annotations.ReferencePolicyOption;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -74,6 +78,20 @@ public class TagFieldDataSourceFactory extends DataSourceFactory {
     
     private static final TagNamespaceProvider DEFAULT_TAG_NAMESPACE_PROVIDER = new DefaultTagNamespaceProvider();
 
+    // must match the order of TagTitleIndex#search
+    private static final Comparator<Resource> DISPLAY_ORDER = Comparator
+            .comparing(Resource::getName)
+            .thenComparing(Resource::getPath);
+
+    @Reference(policyOption = ReferencePolicyOption.GREEDY)
+    private TagNamespaceCache namespaceCache;
+
+    @Reference(policyOption = ReferencePolicyOption.GREEDY)
+    private TagTitleIndex tagTitleIndex;
+
+    @Reference(policyOption = ReferencePolicyOption.GREEDY)
+    private TagRootResolver tagRootResolver;
+
     @Override
     @Nullable
     public Iterable<Resource> computeResources(@NotNull SlingHttpServletRequest request, @NotNull Resource dsResource, @NotNull ExpressionHelper ex) {
@@ -93,52 +111,71 @@ public class TagFieldDataSourceFactory extends DataSourceFactory {
                     .map(Resource::getValueMap)
                     .orElseGet(() -> ResourceUtil.getValueMap(null));
 
-            Collection<String> namespaces = getAvailableNamespacesForPath(request, path, config);
-
-            final Stream<Resource> resourceStream;
-            if (isChildTags) {
-                resourceStream = computeChildTagResources(request, dsProperties, ex, namespaces);
-            } else {
-                resourceStream = computeTagSearchResources(request, dsProperties, ex, namespaces);
-            }
+            Collection<String> namespaces = getAvailableNamespacesForPath(request, path, configPath, config);
 
-            final int offset = ex.get(dsProperties.get("offset", "0"), int.class);
-            final int limit = ex.get(dsProperties.get("limit", "20"), int.class);
+            final int offset = Math.max(0, ex.get(dsProperties.get("offset", "0"), int.class));
+            final int limit = Math.max(0, ex.get(dsProperties.get("limit", "20"), int.class));
 
-            return resourceStream
-                    .sorted(Comparator.comparing(Resource::getName))
-                    .skip(offset)
-                    .limit(limit)
-                    ::iterator;
+            // the search query cannot be served in display order by an index, because it matches
+            // titles with a leading wildcard, so all matches are read, but only the requested page is sorted
+            final Stream<Resource> resources = isChildTags
+                    ? computeChildTagResources(request, dsProperties, ex, namespaces)
+                    : computeTagSearchResources(request, dsProperties, ex, namespaces);
+            return firstInOrder(resources, offset, limit);
         }
         
         throw new IllegalStateException("Called TagsDataSourceFactory for invalid resource type: " +
                 dsResource.getResourceType());
     }
 
+    /**
+     * Returns the resources of the requested page in display order, without sorting all of them.
+     */
     @NotNull
-    private static Stream<Resource> computeChildTagResources(SlingHttpServletRequest request, ValueMap dsProperties, ExpressionHelper ex, Collection<String> namespaces) {
-        return Optional.ofNullable(request.getResourceResolver().adaptTo(TagManager.class))
-                .flatMap(tagManager -> Optional.ofNullable(dsProperties.get("tagId", String.class))
-                        .map(ex::getString)
-                        .map(tagManager::resolve))
-                .map(tag -> computeChildTagResources(tag, namespaces))
-                .orElseGet(Stream::empty);
+    static List<Resource> firstInOrder(@NotNull Stream<Resource> resources, int offset, int limit) {
+        // saturated, because offset and limit are request parameters
+        final int n = (int) Math.min(Integer.MAX_VALUE, (long) offset + limit);
+        if (n <= 0) {
+            return Collections.emptyList();
+        }
+        // the heap keeps the n first resources seen so far, its head is the last of them
+        final PriorityQueue<Resource> heap = new PriorityQueue<>(Math.min(n, 64), DISPLAY_ORDER.reversed());
+        resources.forEach(resource -> {
+            if (heap.size() < n) {
+                heap.add(resource);
+            } else if (DISPLAY_ORDER.compare(resource, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(resource);
+            }
+        });
+        final List<Resource> first = new ArrayList<>(heap);
+        first.sort(DISPLAY_ORDER);
+        return first.subList(Math.min(offset, first.size()), first.size());
     }
 
     @NotNull
-    private static Stream<Resource> computeChildTagResources(Tag tag, Collection<String> namespaces) {
-        // TODO: take into account that /etc/tags moves to /content/cq:tags in AEM 6.5
-        if (Objects.equals(tag.getPath(), "/etc/tags")) {
-            return Optional.ofNullable(tag.adaptTo(Resource.class))
-                    .map(tagResource -> namespaces.stream()
-                            .map(tagResource::getChild)
+    private Stream<Resource> computeChildTagResources(SlingHttpServletRequest request, ValueMap dsProperties, ExpressionHelper ex, Collection<String> namespaces) {
+        final ResourceResolver resolver = request.getResourceResolver();
+        final String tagId = ex.getString(dsProperties.get("tagId", String.class));
+        if (StringUtils.isBlank(tagId) || tagRootResolver.isTagRoot(tagId)) {
+            // the namespaces are listed below the effective tag root, whichever root was requested
+            return Optional.ofNullable(resolver.getResource(tagRootResolver.getTagRoot(resolver)))
+                    .map(tagRoot -> namespaces.stream()
+                            .map(tagRoot::getChild)
                             .filter(Objects::nonNull)
                             .filter(child -> child.adaptTo(Tag.class) != null)
                     )
                     .orElseGet(Stream::empty);
         }
 
+        return Optional.ofNullable(resolver.adaptTo(TagManager.class))
+                .map(tagManager -> tagManager.resolve(tagId))
+                .map(tag -> computeChildTagResources(tag, namespaces))
+                .orElseGet(Stream::empty);
+    }
+
+    @NotNull
+    private static Stream<Resource> computeChildTagResources(Tag tag, Collection<String> namespaces) {
         Tag namespace = tag.isNamespace() ? tag : tag.getNamespace();
         if (namespaces.contains(namespace.getName())) {
             return Optional.<Iterable<Tag>>of(tag::listChildren)
@@ -153,11 +190,29 @@ public class TagFieldDataSourceFactory extends DataSourceFactory {
     }
 
     @NotNull
-    private static Stream<Resource> computeTagSearchResources(SlingHttpServletRequest request, ValueMap dsProperties, ExpressionHelper ex, Collection<String> namespaces) {
-        return Optional.ofNullable(dsProperties.get("query", String.class))
+    private Stream<Resource> computeTagSearchResources(SlingHttpServletRequest request, ValueMap dsProperties, ExpressionHelper ex, Collection<String> namespaces) {
+        final Optional<String> titleQuery = Optional.ofNullable(dsProperties.get("query", String.class))
                 .map(ex::getString)
-                .filter(((Predicate<String>)StringUtils::isBlank).negate())
-                .map(titleQuery -> createQuery(request.getLocale(), titleQuery, namespaces))
+                .filter(((Predicate<String>)StringUtils::isBlank).negate());
+        if (!titleQuery.isPresent()) {
+            return Stream.empty();
+        }
+
+        final ResourceResolver resolver = request.getResourceResolver();
+        final String tagRoot = tagRootResolver.getTagRoot(resolver);
+        final List<String> namespacePaths = namespaces.stream()
+                .map(namespace -> tagRoot + "/" + namespace)
+                .collect(Collectors.toList());
+        final List<String> indexedPaths = tagTitleIndex.search(resolver, namespacePaths,
+                getTitleProperties(request.getLocale()), titleQuery.get());
+        if (indexedPaths != null) {
+            return indexedPaths.stream()
+                    .map(resolver::getResource)
+                    .filter(Objects::nonNull);
+        }
+
+        return titleQuery
+                .map(query -> createQuery(tagRoot, request.getLocale(), query, namespaces))
                 .<Iterable<Resource>>map(query -> () -> {
                     LOG.debug("Executing xpath query '{}'", query);
                     return request.getResourceResolver().findResources(query, "xpath");
@@ -167,15 +222,32 @@ public class TagFieldDataSourceFactory extends DataSourceFactory {
     }
 
     // Namespaces are returned sorted in natural order (via TreeSet)
-    private Collection<String> getAvailableNamespacesForPath(@NotNull SlingHttpServletRequest request, String path, ValueMap config) {
+    private Collection<String> getAvailableNamespacesForPath(@NotNull SlingHttpServletRequest request, String path,
+                                                             @Nullable String configPath, ValueMap config) {
 
         final boolean allowDynamicNamespaces = config.get("allowDynamicNamespaces", false);
         final Stream<TagNamespaceProvider> dynamicProviders =
                 allowDynamicNamespaces ? dynamicNamespaceProviders.stream() : Stream.empty();
 
-        final Set<@NotNull String> allNamespaces = Stream.concat(
+        // namespaces of cacheable providers are cached, all other providers are asked on every request
+        final Map<Boolean, List<TagNamespaceProvider>> providersByCacheability = Stream.concat(
                 Stream.of(DEFAULT_TAG_NAMESPACE_PROVIDER),
                 dynamicProviders)
+                .collect(Collectors.partitioningBy(provider -> provider == DEFAULT_TAG_NAMESPACE_PROVIDER
+                        ? DefaultTagNamespaceProvider.isConfigured(config)
+                        : provider.isCacheable()));
+        final List<TagNamespaceProvider> cacheableProviders = providersByCacheability.get(true);
+
+        final Set<@NotNull String> allNamespaces = new TreeSet<>(namespaceCache.get(path, configPath, cacheableProviders,
+                () -> getNamespaces(request, path, config, cacheableProviders.stream())));
+        allNamespaces.addAll(getNamespaces(request, path, config, providersByCacheability.get(false).stream()));
+        LOG.debug("Effective namespaces for '{}': {}", path, allNamespaces);
+        return allNamespaces;
+    }
+
+    private static Set<String> getNamespaces(@NotNull SlingHttpServletRequest request, String path, ValueMap config,
+                                             Stream<TagNamespaceProvider> providers) {
+        return providers
                 .map(provider -> {
                     final @NotNull String[] namespaces = provider.getNamespaces(request, path, config);
                     LOG.debug("'{}' provides the following namespaces for '{}': {}", provider, path, namespaces);
@@ -183,26 +255,34 @@ public class TagFieldDataSourceFactory extends DataSourceFactory {
                 })
                 .flatMap(Arrays::stream)
                 .collect(Collectors.toCollection(TreeSet::new));
-        LOG.debug("Effective namespaces for '{}': {}", path, allNamespaces);
-        return allNamespaces;
     }
 
-    private static String createQuery(Locale locale, String query, Collection<String> namespaces) {
+    // the title and its variants localized for the country and the language of the locale
+    private static List<String> getTitleProperties(Locale locale) {
+        return getTitleSuffixes(locale)
+                .map(suffix -> "jcr:title" + (suffix.isEmpty() ? suffix : "." + suffix))
+                .collect(Collectors.toList());
+    }
+
+    private static Stream<String> getTitleSuffixes(Locale locale) {
+        final String localeCountry = locale.toString().toLowerCase();
+        final String localeLanguage = new Locale(locale.getLanguage()).toString().toLowerCase();
+        return Stream.of("", localeCountry, localeLanguage).distinct();
+    }
+
+    private static String createQuery(String tagRoot, Locale locale, String query, Collection<String> namespaces) {
         final String nsSegment = namespaces.stream().map(ISO9075::encode)
                 .collect(Collectors.joining("|", "/(", ")"));
-        final String localeCountry = ISO9075.encode(locale.toString().toLowerCase());
-        final String localeLanguage = ISO9075.encode(new Locale(locale.getLanguage()).toString().toLowerCase());
         final String escapedQuery = Text.escapeIllegalXpathSearchChars(query).replaceAll("'", "''");
 
-        final String conditions = Stream.of("", localeCountry, localeLanguage)
-                .distinct()
-                .map(suffix -> "jcr:title" + (suffix.isEmpty() ? suffix : "." + suffix))
+        final String conditions = getTitleSuffixes(locale)
+                .map(suffix -> "jcr:title" + (suffix.isEmpty() ? suffix : "." + ISO9075.encode(suffix)))
                 .map(propertyName -> String.format(
                         "jcr:like(fn:lower-case(@%1$s), '%%%2$s%%')", propertyName, escapedQuery))
                 .collect(Collectors.joining(" or ", "(", ")"));
 
-        return String.format("/jcr:root/etc/tags%1$s//element(*, cq:Tag)[not(@cq:movedTo) and %2$s] order by @jcr:path",
-                nsSegment, conditions);
+        return String.format("/jcr:root%1$s%2$s//element(*, cq:Tag)[not(@cq:movedTo) and %3$s]",
+                tagRoot, nsSegment, conditions);
     }
 
     private static class DefaultTagNamespaceProvider implements TagNamespaceProvider {
@@ -211,7 +291,7 @@ public class TagFieldDataSourceFactory extends DataSourceFactory {
         public String[] getNamespaces(@NotNull SlingHttpServletRequest request, @NotNull String path, @NotNull ValueMap config) {
 
             final String[] namespaces = config.get("namespaces", String[].class);
-            if (namespaces == null && !config.get("allowDynamicNamespaces", false)) {
+            if (!isConfigured(config)) {
                 return Optional.ofNullable(request.getResourceResolver().adaptTo(TagManager.class))
                         .map(TagManager::getNamespaces)
                         .map(Arrays::stream)
@@ -223,6 +303,14 @@ public class TagFieldDataSourceFactory extends DataSourceFactory {
             }
         }
 
+        /**
+         * Without configured namespaces, the namespaces readable by the current user are returned,
+         * which must not be shared with other users.
+         */
+        private static boolean isConfigured(@NotNull ValueMap config) {
+            return config.get("namespaces", String[].class) != null || config.get("allowDynamicNamespaces", false);
+        }
+
         @Override
         public String toString() {
             return "DefaultTagNamespaceProvider";
@@ -0,0 +1,170 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.foundation.form.tagfield;
+
+import net.distilledcode.aem.ui.touch.support.spi.foundation.form.tagfield.TagNamespaceProvider;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Short-lived cache for the effective namespaces of a tag field, as computed by the cacheable
+ * {@link TagNamespaceProvider}s for a content path and tag field configuration. Entries expire
+ * after a configurable time-to-live, which also bounds the time changes to the tag field
+ * configurations take effect, and the whole cache is invalidated whenever a tag changes.
+ * <br>
+ * Entries are shared by all users, because they only contain namespace names. The tags
+ * themselves are always read with the resolver of the current user.
+ */
+@Component(
+        service = {TagNamespaceCache.class, ResourceChangeListener.class},
+        property = {
+                // defaults, must be kept in sync with Config#resource_paths
+                ResourceChangeListener.PATHS + "=/etc/tags",
+                ResourceChangeListener.PATHS + "=/content/cq:tags"
+        }
+)
+@Designate(ocd = TagNamespaceCache.Config.class)
+public class TagNamespaceCache implements ResourceChangeListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TagNamespaceCache.class);
+
+    @ObjectClassDefinition(name = "Distilled Code ~ Tag Namespace Cache")
+    @interface Config {
+        @AttributeDefinition(description = "Maximum number of cached namespace sets. A value of 0 disables caching.")
+        int max_entries() default 500;
+
+        @AttributeDefinition(description = "Time in seconds after which cached namespace sets expire.")
+        long ttl_seconds() default 30;
+
+        @AttributeDefinition(description = "The cache is invalidated if a resource below one of these paths changes.")
+        String[] resource_paths() default {"/etc/tags", "/content/cq:tags"};
+    }
+
+    // guarded by entries
+    private long generation;
+
+    private volatile int maxEntries;
+
+    private volatile long ttlMillis;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    @Activate
+    @Modified
+    public void activate(Config config) {
+        this.maxEntries = Math.max(0, config.max_entries());
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(Math.max(0, config.ttl_seconds()));
+        invalidate();
+    }
+
+    @Deactivate
+    public void deactivate() {
+        invalidate();
+    }
+
+    @Override
+    public void onChange(@NotNull List<ResourceChange> changes) {
+        LOG.debug("Invalidating cache due to changes, e.g. at '{}'", changes.isEmpty() ? null : changes.get(0).getPath());
+        invalidate();
+    }
+
+    /**
+     * Returns the namespaces cached for the given path, configuration and providers or computes
+     * and caches them. Cached namespaces are only returned if they were computed by the same
+     * providers, so that providers coming and going are taken into account immediately.
+     *
+     * @param path The content path the tag field is rendered for.
+     * @param configPath The path of the tag field configuration.
+     * @param providers The cacheable providers the namespaces are computed with.
+     * @param namespacesSupplier Computes the namespaces in case of a cache miss.
+     * @return the cached or computed namespaces
+     */
+    @NotNull
+    public Set<String> get(@NotNull String path, @Nullable String configPath, @NotNull List<TagNamespaceProvider> providers,
+                           @NotNull Supplier<Set<String>> namespacesSupplier) {
+        if (maxEntries == 0 || ttlMillis == 0) {
+            return namespacesSupplier.get();
+        }
+
+        final String key = configPath + ":" + path;
+        final long now = System.currentTimeMillis();
+        final long generation;
+        synchronized (entries) {
+            final Entry entry = entries.get(key);
+            if (entry != null && entry.expires > now && entry.providers.equals(providers)) {
+                return entry.namespaces;
+            }
+            generation = this.generation;
+        }
+
+        final Set<String> namespaces = Collections.unmodifiableSet(new TreeSet<>(namespacesSupplier.get()));
+        synchronized (entries) {
+            // don't cache namespaces that may have been computed before an invalidation
+            if (generation == this.generation) {
+                entries.put(key, new Entry(new ArrayList<>(providers), namespaces, now + ttlMillis));
+            }
+        }
+        return namespaces;
+    }
+
+    public void invalidate() {
+        synchronized (entries) {
+            entries.clear();
+            generation++;
+        }
+    }
+
+    private static class Entry {
+
+        private final List<TagNamespaceProvider> providers;
+
+        private final Set<String> namespaces;
+
+        private final long expires;
+
+        private Entry(List<TagNamespaceProvider> providers, Set<String> namespaces, long expires) {
+            this.providers = providers;
+            this.namespaces = namespaces;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.foundation.form.tagfield;
+
+import com.day.cq.tagging.Tag;
+import com.day.cq.tagging.TagManager;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.service.component.annotations.Component;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Detects the root of the tag tree, which moved from {@code /etc/tags} to {@code /content/cq:tags}
+ * in AEM 6.4, and caches it. The root is detected again if one of the candidate roots is added
+ * or removed, e.g. when the tags are migrated.
+ */
+@Component(
+        service = {TagRootResolver.class, ResourceChangeListener.class},
+        property = {
+                ResourceChangeListener.PATHS + "=" + TagRootResolver.TAG_ROOT,
+                ResourceChangeListener.PATHS + "=" + TagRootResolver.LEGACY_TAG_ROOT,
+                ResourceChangeListener.CHANGES + "=ADDED",
+                ResourceChangeListener.CHANGES + "=REMOVED"
+        }
+)
+public class TagRootResolver implements ResourceChangeListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TagRootResolver.class);
+
+    static final String TAG_ROOT = "/content/cq:tags";
+
+    static final String LEGACY_TAG_ROOT = "/etc/tags";
+
+    private static final List<String> CANDIDATES = Arrays.asList(TAG_ROOT, LEGACY_TAG_ROOT);
+
+    private volatile String tagRoot;
+
+    @Override
+    public void onChange(@NotNull List<ResourceChange> changes) {
+        if (changes.stream().anyMatch(change -> CANDIDATES.contains(change.getPath()))) {
+            LOG.debug("Tag root added or removed, detecting it again");
+            tagRoot = null;
+        }
+    }
+
+    /**
+     * @param resolver The resolver of the current user, used to detect the tag root if necessary.
+     * @return the path of the tag root
+     */
+    @NotNull
+    public String getTagRoot(@NotNull ResourceResolver resolver) {
+        final String cached = tagRoot;
+        if (cached != null) {
+            return cached;
+        }
+        final String detected = detect(resolver);
+        if (detected == null) {
+            // don't cache the fallback, the resolver may not be allowed to read the tags
+            return LEGACY_TAG_ROOT;
+        }
+        LOG.info("Detected tag root '{}'", detected);
+        tagRoot = detected;
+        return detected;
+    }
+
+    /**
+     * @param path A path, e.g. the ID of a tag.
+     * @return {@code true} if the path is one of the possible tag roots
+     */
+    public boolean isTagRoot(@Nullable String path) {
+        return CANDIDATES.contains(path);
+    }
+
+    @Nullable
+    private static String detect(@NotNull ResourceResolver resolver) {
+        // the tag manager knows where the namespaces are
+        final Optional<String> namespaceParent = Optional.ofNullable(resolver.adaptTo(TagManager.class))
+                .map(TagManager::getNamespaces)
+                .filter(namespaces -> namespaces.length > 0)
+                .map(namespaces -> namespaces[0])
+                .map(Tag::getPath)
+                .map(ResourceUtil::getParent);
+        if (namespaceParent.isPresent()) {
+            return namespaceParent.get();
+        }
+        return CANDIDATES.stream()
+                .filter(candidate -> resolver.getResource(candidate) != null)
+                .findFirst()
+                .orElse(null);
+    }
+}
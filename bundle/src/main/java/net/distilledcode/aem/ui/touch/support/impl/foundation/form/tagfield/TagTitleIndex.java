@@ -0,0 +1,434 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.foundation.form.tagfield;
+
+import net.distilledcode.aem.ui.touch.support.api.ui.DialogUtil;
+import net.distilledcode.aem.ui.touch.support.api.ui.PathTrie;
+import net.distilledcode.aem.ui.touch.support.impl.ServiceResolvers;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * In-memory index of the titles of tags, used to answer tag field suggestions without a query.
+ * The index is partitioned by namespace. Each namespace is traversed once, when it is first
+ * searched, and all of its title properties, i.e. {@code jcr:title} and its localized variants,
+ * are indexed by their trigrams. Afterwards the partitions are refreshed incrementally: the
+ * subtrees of changed tags are marked as stale and are re-traversed in the background the next
+ * time the namespace is searched. Until then, searches are answered from the stale partition.
+ * <br>
+ * Partitions are built in the background, while searches of the namespace are answered by the
+ * caller with a query. Partitions are built and refreshed with a service user and are shared by
+ * all users. The tags found are resolved with the resolver of the current user, so users only
+ * get the tags they may read.
+ */
+@Component(
+        service = {TagTitleIndex.class, ResourceChangeListener.class},
+        property = {
+                // defaults, must be kept in sync with Config#resource_paths
+                ResourceChangeListener.PATHS + "=/etc/tags",
+                ResourceChangeListener.PATHS + "=/content/cq:tags"
+        }
+)
+@Designate(ocd = TagTitleIndex.Config.class)
+public class TagTitleIndex implements ResourceChangeListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TagTitleIndex.class);
+
+    private static final String PN_TITLE = "jcr:title";
+
+    private static final int GRAM_LENGTH = 3;
+
+    @ObjectClassDefinition(name = "Distilled Code ~ Tag Title Index")
+    @interface Config {
+        @AttributeDefinition(description = "Answer tag field suggestions from the in-memory index instead of a query.")
+        boolean enabled() default true;
+
+        @AttributeDefinition(description = "Changes below these paths are applied to the index. Should cover the tag root.")
+        String[] resource_paths() default {"/etc/tags", "/content/cq:tags"};
+    }
+
+    // partitions keyed by the path of their namespace
+    private final Map<String, Partition> partitions = new ConcurrentHashMap<>();
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    private volatile boolean enabled;
+
+    private volatile ExecutorService executor;
+
+    @Activate
+    @Modified
+    public synchronized void activate(Config config) {
+        this.enabled = config.enabled();
+        partitions.clear();
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "distilledcode-tag-title-index");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    @Deactivate
+    public synchronized void deactivate() {
+        executor.shutdownNow();
+        executor = null;
+        partitions.clear();
+    }
+
+    @Override
+    public void onChange(@NotNull List<ResourceChange> changes) {
+        for (ResourceChange change : changes) {
+            final String path = change.getPath();
+            // partitions of changed or removed namespaces are discarded and rebuilt when they are searched again
+            partitions.keySet().removeIf(namespacePath -> Objects.equals(path, namespacePath)
+                    || isAncestorOf(path, namespacePath));
+            for (Partition partition : partitions.values()) {
+                partition.markStale(path);
+            }
+        }
+    }
+
+    /**
+     * Finds the tags with a title containing the given term, ignoring case. Besides {@code jcr:title}
+     * the titles localized for the language and the country of the given locale are considered.
+     *
+     * @param resolver The resolver of the current user.
+     * @param namespacePaths The paths of the namespaces to search.
+     * @param titleProperties The names of the title properties to search.
+     * @param term The term to search for.
+     * @return the paths of the matching tags ordered by name and path, or {@code null} if the index is disabled
+     * or any of the namespaces is not indexed yet
+     */
+    @Nullable
+    public List<String> search(@NotNull ResourceResolver resolver, @NotNull Collection<String> namespacePaths,
+                               @NotNull Collection<String> titleProperties, @NotNull String term) {
+        if (!enabled) {
+            return null;
+        }
+        final List<Partition> searched = new ArrayList<>();
+        boolean ready = true;
+        for (String namespacePath : namespacePaths) {
+            final Partition partition = partitions.computeIfAbsent(namespacePath, Partition::new);
+            // all partitions are scheduled, so that they are built by the time they are searched again
+            ready &= partition.isReady() || partition.scheduleBuild();
+            searched.add(partition);
+        }
+        if (!ready) {
+            return null;
+        }
+
+        // titles are lower cased independently of the default locale, like fn:lower-case in a query
+        final String lowerCaseTerm = term.toLowerCase(Locale.ROOT);
+        final List<TagEntry> matches = new ArrayList<>();
+        for (Partition partition : searched) {
+            partition.scheduleRefresh();
+            matches.addAll(partition.search(titleProperties, lowerCaseTerm));
+        }
+        matches.sort(Comparator.comparing((TagEntry entry) -> entry.name).thenComparing(entry -> entry.path));
+        final List<String> paths = new ArrayList<>(matches.size());
+        matches.forEach(entry -> paths.add(entry.path));
+        return paths;
+    }
+
+    private static boolean isAncestorOf(String ancestor, String path) {
+        return ancestor.length() < path.length()
+                && path.startsWith(ancestor) && path.charAt(ancestor.length()) == '/';
+    }
+
+    private static Set<String> grams(String title) {
+        final Set<String> grams = new HashSet<>();
+        for (int i = 0; i + GRAM_LENGTH <= title.length(); i++) {
+            grams.add(title.substring(i, i + GRAM_LENGTH));
+        }
+        return grams;
+    }
+
+    @Nullable
+    private static TagEntry toEntry(Resource resource) {
+        final ValueMap properties = resource.getValueMap();
+        if (!Objects.equals(properties.get("jcr:primaryType", String.class), "cq:Tag")
+                || properties.containsKey("cq:movedTo")) {
+            return null;
+        }
+        final Map<String, String> titles = new HashMap<>();
+        properties.forEach((name, value) -> {
+            if ((name.equals(PN_TITLE) || name.startsWith(PN_TITLE + ".")) && value instanceof String) {
+                titles.put(name, ((String) value).toLowerCase(Locale.ROOT));
+            }
+        });
+        return new TagEntry(resource.getPath(), resource.getName(), titles);
+    }
+
+    /**
+     * The index of the tags of a single namespace. All access to the index is synchronized on
+     * the instance.
+     */
+    private class Partition {
+
+        private final String namespacePath;
+
+        private final NavigableMap<String, TagEntry> entries = new TreeMap<>();
+
+        // trigrams of all titles mapped to the paths of the tags with these titles
+        private final Map<String, Set<String>> pathsByGram = new HashMap<>();
+
+        // paths whose subtrees need to be re-traversed, also collected while the partition is built
+        private final NavigableSet<String> stale = new ConcurrentSkipListSet<>();
+
+        private final AtomicBoolean buildScheduled = new AtomicBoolean();
+
+        private final AtomicBoolean refreshScheduled = new AtomicBoolean();
+
+        private volatile boolean ready;
+
+        private Partition(String namespacePath) {
+            this.namespacePath = namespacePath;
+        }
+
+        private void markStale(String path) {
+            if (isAncestorOf(namespacePath, path)) {
+                stale.add(path);
+            }
+        }
+
+        private boolean isReady() {
+            return ready;
+        }
+
+        /**
+         * Schedules the partition to be built, unless it was scheduled before. A partition that
+         * failed to build is not scheduled again, its namespace is searched with a query instead.
+         *
+         * @return {@code false}, because the partition is not ready yet
+         */
+        private boolean scheduleBuild() {
+            schedule(buildScheduled, this::build);
+            return false;
+        }
+
+        /**
+         * Schedules the stale paths of the partition to be re-traversed, unless a refresh is
+         * scheduled already.
+         */
+        private void scheduleRefresh() {
+            if (!stale.isEmpty()) {
+                schedule(refreshScheduled, resolver -> {
+                    // changes from now on are applied by the next refresh
+                    refreshScheduled.set(false);
+                    refresh(resolver);
+                });
+            }
+        }
+
+        private void schedule(AtomicBoolean scheduled, Consumer<ResourceResolver> task) {
+            final ExecutorService executor = TagTitleIndex.this.executor;
+            if (executor != null && scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(() -> {
+                        try (ResourceResolver resolver = ServiceResolvers.open(resolverFactory, ServiceResolvers.READER)) {
+                            task.accept(resolver);
+                        } catch (LoginException | RuntimeException e) {
+                            LOG.error("Failed to index the tags below '{}'", namespacePath, e);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // the index is being deactivated
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        private synchronized List<TagEntry> search(Collection<String> titleProperties, String term) {
+            final Collection<TagEntry> candidates;
+            if (term.length() < GRAM_LENGTH) {
+                candidates = entries.values();
+            } else {
+                // only tags with titles containing all trigrams of the term can match
+                Set<String> paths = null;
+                for (String gram : grams(term)) {
+                    final Set<String> gramPaths = pathsByGram.getOrDefault(gram, Collections.emptySet());
+                    if (paths == null) {
+                        paths = new HashSet<>(gramPaths);
+                    } else {
+                        paths.retainAll(gramPaths);
+                    }
+                    if (paths.isEmpty()) {
+                        return Collections.emptyList();
+                    }
+                }
+                candidates = new ArrayList<>();
+                for (String path : paths) {
+                    candidates.add(entries.get(path));
+                }
+            }
+
+            final List<TagEntry> matches = new ArrayList<>();
+            for (TagEntry entry : candidates) {
+                if (entry.matches(titleProperties, term)) {
+                    matches.add(entry);
+                }
+            }
+            return matches;
+        }
+
+        private synchronized void build(ResourceResolver resolver) {
+            final long start = System.currentTimeMillis();
+            entries.clear();
+            pathsByGram.clear();
+            // changes from now on are applied by the next refresh
+            stale.clear();
+            final Resource namespace = resolver.getResource(namespacePath);
+            if (namespace != null) {
+                traverse(namespace).forEach(this::add);
+            }
+            ready = true;
+            LOG.debug("Indexed {} tags below '{}' in {}ms", entries.size(), namespacePath,
+                    System.currentTimeMillis() - start);
+        }
+
+        private void refresh(ResourceResolver resolver) {
+            final List<String> paths = new ArrayList<>(stale);
+            stale.removeAll(paths);
+            final PathTrie refreshed = new PathTrie();
+            final Map<String, List<TagEntry>> traversed = new LinkedHashMap<>();
+            for (String path : paths) {
+                // descendants of a stale path are re-traversed along with it
+                if (refreshed.hasAncestor(path)) {
+                    continue;
+                }
+                refreshed.add(path);
+                traversed.put(path, Optional.ofNullable(resolver.getResource(path))
+                        .map(this::traverse)
+                        .orElse(Collections.emptyList()));
+            }
+            // the subtrees are read before the lock is taken, so searches only wait for the update
+            synchronized (this) {
+                traversed.forEach((path, found) -> {
+                    remove(path);
+                    found.forEach(this::add);
+                });
+            }
+            LOG.debug("Refreshed {} stale paths below '{}'", paths.size(), namespacePath);
+        }
+
+        private void remove(String path) {
+            // all descendants of path sort between "path/" and "path0", because '0' follows '/'
+            final List<TagEntry> removed = new ArrayList<>(entries.subMap(path + "/", path + "0").values());
+            Optional.ofNullable(entries.get(path)).ifPresent(removed::add);
+            for (TagEntry entry : removed) {
+                entries.remove(entry.path);
+                for (String gram : entry.grams()) {
+                    final Set<String> paths = pathsByGram.get(gram);
+                    if (paths != null && paths.remove(entry.path) && paths.isEmpty()) {
+                        pathsByGram.remove(gram);
+                    }
+                }
+            }
+        }
+
+        private List<TagEntry> traverse(Resource resource) {
+            return Stream.concat(Stream.of(resource), DialogUtil.streamDescendants(resource))
+                    .map(TagTitleIndex::toEntry)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList());
+        }
+
+        private void add(TagEntry entry) {
+            entries.put(entry.path, entry);
+            for (String gram : entry.grams()) {
+                pathsByGram.computeIfAbsent(gram, key -> new HashSet<>()).add(entry.path);
+            }
+        }
+    }
+
+    private static class TagEntry {
+
+        private final String path;
+
+        private final String name;
+
+        // lower case titles keyed by property name
+        private final Map<String, String> titles;
+
+        private TagEntry(String path, String name, Map<String, String> titles) {
+            this.path = path;
+            this.name = name;
+            this.titles = titles;
+        }
+
+        private Set<String> grams() {
+            final Set<String> grams = new HashSet<>();
+            titles.values().forEach(title -> grams.addAll(TagTitleIndex.grams(title)));
+            return grams;
+        }
+
+        private boolean matches(Collection<String> titleProperties, String term) {
+            for (String property : titleProperties) {
+                final String title = titles.get(property);
+                if (title != null && title.contains(term)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
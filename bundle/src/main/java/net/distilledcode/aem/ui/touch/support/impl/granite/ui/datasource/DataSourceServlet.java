@@ -25,6 +25,8 @@ import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.Optional;
+
 class DataSourceServlet extends SlingSafeMethodsServlet {
 
     private final DataSourceFactory factory;
@@ -45,11 +47,15 @@ class DataSourceServlet extends SlingSafeMethodsServlet {
         // a coral table, it may point to a "columnsdatasource" for column definitions.
         // therefore we first check if there is a "datasource" child and use it if present.
         // otherwise we assume that request.getResource() is the correct datasource resource.
-        Resource dsResource = request.getResource().getChild("datasource");
-        if (dsResource == null) {
-            dsResource = request.getResource();
+        final Resource dsResource = Optional.ofNullable(request.getResource().getChild("datasource"))
+                .orElseGet(request::getResource);
+        final DataSource dataSource;
+        if (RequestScopedDataSourceCache.isMemoized(dsResource)) {
+            dataSource = RequestScopedDataSourceCache.getOrCreate(request)
+                    .get(request, dsResource, ex, () -> factory.createDataSource(request, dsResource, ex));
+        } else {
+            dataSource = factory.createDataSource(request, dsResource, ex);
         }
-        DataSource dataSource = factory.createDataSource(request, dsResource, ex);
         request.setAttribute(DataSource.class.getName(), dataSource);
     }
 }
@@ -0,0 +1,152 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.granite.ui.datasource;
+
+import com.adobe.granite.ui.components.ExpressionHelper;
+import com.adobe.granite.ui.components.ds.DataSource;
+import com.adobe.granite.ui.components.ds.SimpleDataSource;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.servlet.ServletRequest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+/**
+ * Caches the materialized resources of a {@code DataSource} for the lifetime of the
+ * outer request. Included requests share the attributes of the outer request, hence
+ * a datasource that is included many times (e.g. in every item of a multifield) is
+ * only computed once.
+ * <br>
+ * Memoization is opt-in and enabled by setting the boolean property {@value #PN_MEMOIZE}
+ * on the "datasource" resource. Cache entries are keyed by the datasource resource's
+ * path plus the resolved values of all of its properties that contain an expression.
+ */
+public class RequestScopedDataSourceCache {
+
+    /**
+     * Name of the boolean property on the "datasource" resource that enables memoization.
+     */
+    public static final String PN_MEMOIZE = "memoize";
+
+    private static final String ATTR_NAME = RequestScopedDataSourceCache.class.getName();
+
+    private static final String EXPRESSION_START = "${";
+
+    private final Map<String, List<Resource>> cache = new HashMap<>();
+
+    private int hits;
+
+    private int misses;
+
+    private RequestScopedDataSourceCache() {
+    }
+
+    /**
+     * Returns the cache bound to the given request, or {@code null} if no memoized
+     * datasource has been rendered within the request yet.
+     *
+     * @param request The current request.
+     * @return the request's cache or {@code null}
+     */
+    @Nullable
+    public static RequestScopedDataSourceCache fromRequest(@NotNull ServletRequest request) {
+        final Object cache = request.getAttribute(ATTR_NAME);
+        return cache instanceof RequestScopedDataSourceCache ? (RequestScopedDataSourceCache) cache : null;
+    }
+
+    static boolean isMemoized(@NotNull Resource dsResource) {
+        return dsResource.getValueMap().get(PN_MEMOIZE, false);
+    }
+
+    @NotNull
+    static RequestScopedDataSourceCache getOrCreate(@NotNull SlingHttpServletRequest request) {
+        RequestScopedDataSourceCache cache = fromRequest(request);
+        if (cache == null) {
+            cache = new RequestScopedDataSourceCache();
+            request.setAttribute(ATTR_NAME, cache);
+        }
+        return cache;
+    }
+
+    @NotNull
+    DataSource get(@NotNull SlingHttpServletRequest request, @NotNull Resource dsResource,
+                   @NotNull ExpressionHelper ex, @NotNull Supplier<DataSource> dataSourceSupplier) {
+        final String key = createKey(dsResource, ex);
+        List<Resource> resources = cache.get(key);
+        if (resources != null) {
+            hits++;
+            request.getRequestProgressTracker().log("DataSource cache hit #{0} for {1}", hits, key);
+        } else {
+            misses++;
+            request.getRequestProgressTracker().log("DataSource cache miss #{0} for {1}", misses, key);
+            resources = materialize(dataSourceSupplier.get());
+            cache.put(key, resources);
+        }
+        return new SimpleDataSource(resources.iterator());
+    }
+
+    /**
+     * @return the number of datasources served from this cache
+     */
+    public int getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of datasources that had to be computed
+     */
+    public int getMisses() {
+        return misses;
+    }
+
+    @NotNull
+    private static List<Resource> materialize(@NotNull DataSource dataSource) {
+        final List<Resource> resources = new ArrayList<>();
+        dataSource.iterator().forEachRemaining(resources::add);
+        return Collections.unmodifiableList(resources);
+    }
+
+    @NotNull
+    private static String createKey(@NotNull Resource dsResource, @NotNull ExpressionHelper ex) {
+        final ValueMap properties = dsResource.getValueMap();
+        final SortedMap<String, String> resolvedExpressions = new TreeMap<>();
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            final Object value = property.getValue();
+            if (value instanceof String && ((String) value).contains(EXPRESSION_START)) {
+                resolvedExpressions.put(property.getKey(), ex.getString((String) value));
+            } else if (value instanceof String[]) {
+                final String[] resolvedValues = Arrays.stream((String[]) value)
+                        .map(v -> v.contains(EXPRESSION_START) ? ex.getString(v) : v)
+                        .toArray(String[]::new);
+                if (!Arrays.equals(resolvedValues, (String[]) value)) {
+                    resolvedExpressions.put(property.getKey(), Arrays.toString(resolvedValues));
+                }
+            }
+        }
+        return dsResource.getPath() + resolvedExpressions;
+    }
+}
@@ -0,0 +1,418 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.image;
+
+import net.distilledcode.aem.ui.touch.support.impl.ServiceResolvers;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ValueMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import java.awt.Dimension;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Determines the dimensions of asset renditions, reading the binary only if they are not known
+ * yet. Dimensions are looked up, in this order, in a bounded in-memory cache keyed by the path
+ * and the last modification of the rendition, in the metadata of the rendition (and of the asset
+ * for the original rendition) and finally read from the image header. The cache also remembers
+ * renditions that are not images, so their binaries are not read again. Dimensions of original
+ * renditions read from the header can optionally be written back to the metadata of the asset, so
+ * that they are known after a restart and on other instances. Other renditions are not written
+ * back, because their {@code nt:resource} content does not accept the properties. Write-backs
+ * are done in the background by a service user and are dropped if too many are pending.
+ * <br>
+ * Image headers are read with the {@link ImageHeaderProber}, only images it does not support are
+ * read with {@code ImageIO}. The number of dimensions answered by each {@link Source} is recorded.
+ */
+@Component(service = ImageDimensionCache.class)
+@Designate(ocd = ImageDimensionCache.Config.class)
+public class ImageDimensionCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ImageDimensionCache.class);
+
+    static final String PN_WIDTH = "tiff:ImageWidth";
+
+    static final String PN_HEIGHT = "tiff:ImageLength";
+
+    private static final String PN_LAST_MODIFIED = "jcr:lastModified";
+
+    private static final String ORIGINAL = "original";
+
+    private static final int MAX_PENDING_WRITE_BACKS = 100;
+
+    @ObjectClassDefinition(name = "Distilled Code ~ Image Dimension Cache")
+    @interface Config {
+        @AttributeDefinition(description = "Maximum number of cached rendition dimensions. " +
+                "A value of 0 disables caching.")
+        int max_entries() default 5000;
+
+        @AttributeDefinition(description = "Write dimensions read from the header of original renditions " +
+                "back to the asset metadata, as \"" + PN_WIDTH + "\" and \"" + PN_HEIGHT + "\". " +
+                "May trigger workflow launchers.")
+        boolean write_back() default false;
+    }
+
+    /**
+     * The ways dimensions are determined, in the order they are tried.
+     */
+    public enum Source {
+        CACHE, METADATA, HEADER, IMAGE_IO
+    }
+
+    private final Map<Source, AtomicLong> answered = new EnumMap<>(Source.class);
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    private volatile ExecutorService writeBackExecutor;
+
+    private volatile int maxEntries;
+
+    private volatile boolean writeBack;
+
+    // marks renditions that are not images that can be read
+    private static final int[] NOT_AN_IMAGE = new int[0];
+
+    // dimensions as {width, height} or NOT_AN_IMAGE, keyed by rendition path and last modification
+    private final Map<String, int[]> entries = new LinkedHashMap<String, int[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    public ImageDimensionCache() {
+        for (Source source : Source.values()) {
+            answered.put(source, new AtomicLong());
+        }
+    }
+
+    @Activate
+    @Modified
+    public synchronized void activate(Config config) {
+        this.maxEntries = Math.max(0, config.max_entries());
+        this.writeBack = config.write_back();
+        if (writeBackExecutor == null) {
+            // a single daemon thread, write-backs are dropped when the queue is full
+            writeBackExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(MAX_PENDING_WRITE_BACKS), runnable -> {
+                        final Thread thread = new Thread(runnable, "distilledcode-image-dimension-write-back");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+        invalidate();
+    }
+
+    @Deactivate
+    public synchronized void deactivate() {
+        writeBackExecutor.shutdownNow();
+        writeBackExecutor = null;
+        invalidate();
+    }
+
+    /**
+     * @param rendition A rendition of an asset.
+     * @return the dimensions of the rendition, if it is an image that can be read
+     * @throws IOException if the rendition cannot be read
+     */
+    @NotNull
+    public Optional<Dimension> getDimensions(@NotNull Resource rendition) throws IOException {
+        final Lookup known = getKnownDimensions(rendition);
+        return known.isKnown() ? known.getDimension() : readDimensions(rendition).getDimension();
+    }
+
+    /**
+     * Looks up the dimensions of a rendition in the cache and in the metadata, without reading
+     * the binary.
+     *
+     * @param rendition A rendition of an asset.
+     * @return the dimensions of the rendition, {@link Lookup#NOT_AN_IMAGE} if the rendition was read
+     * before and is not an image, or {@link Lookup#UNKNOWN}
+     */
+    @NotNull
+    public Lookup getKnownDimensions(@NotNull Resource rendition) {
+        final String key = getKey(rendition);
+        if (key != null) {
+            synchronized (entries) {
+                final int[] cached = entries.get(key);
+                if (cached != null) {
+                    record(rendition, Source.CACHE);
+                    return cached == NOT_AN_IMAGE ? Lookup.NOT_AN_IMAGE : Lookup.of(new Dimension(cached[0], cached[1]));
+                }
+            }
+        }
+
+        final Optional<Dimension> dimensions = readMetadata(rendition);
+        if (dimensions.isPresent()) {
+            record(rendition, Source.METADATA);
+            cache(key, new int[]{dimensions.get().width, dimensions.get().height});
+            return Lookup.of(dimensions.get());
+        }
+        return Lookup.UNKNOWN;
+    }
+
+    /**
+     * Reads the dimensions of a rendition from its binary and caches them, or the fact that the
+     * rendition is not an image.
+     *
+     * @param rendition A rendition of an asset.
+     * @return the dimensions of the rendition or {@link Lookup#NOT_AN_IMAGE}
+     * @throws IOException if the rendition cannot be read
+     */
+    @NotNull
+    public Lookup readDimensions(@NotNull Resource rendition) throws IOException {
+        final Optional<Dimension> dimensions = readHeader(rendition);
+        final String key = getKey(rendition);
+        if (!dimensions.isPresent()) {
+            cache(key, NOT_AN_IMAGE);
+            return Lookup.NOT_AN_IMAGE;
+        }
+        final Dimension dimension = dimensions.get();
+        if (writeBack && key != null && ORIGINAL.equals(rendition.getName())) {
+            scheduleWriteBack(rendition.getPath(), key, dimension);
+        }
+        cache(key, new int[]{dimension.width, dimension.height});
+        return Lookup.of(dimension);
+    }
+
+    // renditions without last modification cannot be cached, because changes would go unnoticed
+    @Nullable
+    private static String getKey(Resource rendition) {
+        final Calendar lastModified = rendition.getValueMap().get("jcr:content/" + PN_LAST_MODIFIED, Calendar.class);
+        return lastModified == null ? null : rendition.getPath() + "@" + lastModified.getTimeInMillis();
+    }
+
+    private void cache(@Nullable String key, int[] entry) {
+        if (key != null && maxEntries > 0) {
+            synchronized (entries) {
+                entries.put(key, entry);
+            }
+        }
+    }
+
+    public void invalidate() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * @param source A source of dimensions.
+     * @return the number of requests answered by the given source
+     */
+    public long getAnswered(@NotNull Source source) {
+        return answered.get(source).get();
+    }
+
+    private void record(Resource rendition, Source source) {
+        answered.get(source).incrementAndGet();
+        LOG.debug("Dimensions of '{}' answered by {}", rendition.getPath(), source);
+    }
+
+    private static Optional<Dimension> readMetadata(Resource rendition) {
+        final List<Resource> candidates = new ArrayList<>();
+        Optional.ofNullable(rendition.getChild("jcr:content")).ifPresent(candidates::add);
+        Optional.ofNullable(rendition.getChild("jcr:content/metadata")).ifPresent(candidates::add);
+        Optional.ofNullable(getAssetMetadata(rendition)).ifPresent(candidates::add);
+        for (Resource candidate : candidates) {
+            final ValueMap properties = candidate.getValueMap();
+            final long width = properties.get(PN_WIDTH, 0L);
+            final long height = properties.get(PN_HEIGHT, 0L);
+            if (width > 0 && height > 0) {
+                return Optional.of(new Dimension((int) width, (int) height));
+            }
+        }
+        return Optional.empty();
+    }
+
+    // the metadata of the asset describes the original rendition
+    @Nullable
+    private static Resource getAssetMetadata(Resource rendition) {
+        if (!ORIGINAL.equals(rendition.getName())) {
+            return null;
+        }
+        return Optional.ofNullable(rendition.getParent())
+                .map(Resource::getParent)
+                .map(assetContent -> assetContent.getChild("metadata"))
+                .orElse(null);
+    }
+
+    private Optional<Dimension> readHeader(Resource rendition) throws IOException {
+        final InputStream inputStream = ImageReaderHelper.getRenditionInputStream(rendition);
+        if (inputStream == null) {
+            return Optional.empty();
+        }
+        final Binary binary = getBinary(rendition);
+        try (InputStream closeable = inputStream) {
+            final Optional<Dimension> dimensions = ImageHeaderProber.probe(closeable,
+                    binary == null ? null : randomAccess(binary));
+            if (dimensions.isPresent()) {
+                record(rendition, Source.HEADER);
+                return dimensions;
+            }
+        } finally {
+            if (binary != null) {
+                binary.dispose();
+            }
+        }
+
+        final String mimeType = rendition.getValueMap().get("jcr:content/jcr:mimeType", String.class);
+        final Optional<Dimension> dimensions = ImageReaderHelper
+                .from(() -> ImageReaderHelper.getRenditionInputStream(rendition), mimeType)
+                .withImageReader(ImageReaderHelper::getImageDimensions);
+        if (dimensions.isPresent()) {
+            record(rendition, Source.IMAGE_IO);
+        }
+        return dimensions;
+    }
+
+    @Nullable
+    private static Binary getBinary(Resource rendition) {
+        final Node content = Optional.ofNullable(rendition.getChild("jcr:content"))
+                .map(resource -> resource.adaptTo(Node.class))
+                .orElse(null);
+        try {
+            return content != null && content.hasProperty("jcr:data") ? content.getProperty("jcr:data").getBinary() : null;
+        } catch (RepositoryException e) {
+            LOG.debug("Failed to access the binary of '{}'", rendition.getPath(), e);
+            return null;
+        }
+    }
+
+    private static ImageHeaderProber.RandomAccess randomAccess(Binary binary) {
+        return (buffer, position) -> {
+            try {
+                return binary.read(buffer, position);
+            } catch (RepositoryException e) {
+                throw new IOException("Failed to read binary", e);
+            }
+        };
+    }
+
+    private void scheduleWriteBack(String path, String key, Dimension dimension) {
+        final ExecutorService executor = writeBackExecutor;
+        if (executor == null) {
+            return;
+        }
+        try {
+            executor.execute(() -> writeBack(path, key, dimension));
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Dropped writing dimensions back to '{}', too many write-backs are pending", path);
+        }
+    }
+
+    private void writeBack(String path, String key, Dimension dimension) {
+        try (ResourceResolver resolver = ServiceResolvers.open(resolverFactory, ServiceResolvers.METADATA_WRITER)) {
+            final Resource rendition = resolver.getResource(path);
+            // the rendition may have changed since its dimensions were read
+            if (rendition == null || !key.equals(getKey(rendition))) {
+                return;
+            }
+            final Resource metadata = getAssetMetadata(rendition);
+            final ModifiableValueMap properties = metadata == null ? null : metadata.adaptTo(ModifiableValueMap.class);
+            if (properties == null) {
+                LOG.warn("Failed to write dimensions back to '{}', the asset has no modifiable metadata", path);
+                return;
+            }
+            properties.put(PN_WIDTH, (long) dimension.width);
+            properties.put(PN_HEIGHT, (long) dimension.height);
+            resolver.commit();
+        } catch (LoginException e) {
+            LOG.warn("Failed to write dimensions back to '{}', the service user is not available", path, e);
+        } catch (PersistenceException | IllegalArgumentException | UnsupportedOperationException e) {
+            LOG.warn("Failed to write dimensions back to '{}'", path, e);
+        }
+    }
+
+    /**
+     * The outcome of looking up the dimensions of a rendition.
+     */
+    public static final class Lookup {
+
+        /**
+         * The dimensions are not known, the rendition was not read yet or could not be read.
+         */
+        public static final Lookup UNKNOWN = new Lookup(null, false);
+
+        /**
+         * The rendition was read and is not an image whose dimensions can be read.
+         */
+        public static final Lookup NOT_AN_IMAGE = new Lookup(null, true);
+
+        @Nullable
+        private final Dimension dimension;
+
+        private final boolean known;
+
+        private Lookup(@Nullable Dimension dimension, boolean known) {
+            this.dimension = dimension;
+            this.known = known;
+        }
+
+        private static Lookup of(@NotNull Dimension dimension) {
+            return new Lookup(dimension, true);
+        }
+
+        /**
+         * @return {@code true} unless this is {@link #UNKNOWN}
+         */
+        public boolean isKnown() {
+            return known;
+        }
+
+        /**
+         * @return the dimensions of the rendition, if it is an image that can be read
+         */
+        @NotNull
+        public Optional<Dimension> getDimension() {
+            return Optional.ofNullable(dimension);
+        }
+    }
+}
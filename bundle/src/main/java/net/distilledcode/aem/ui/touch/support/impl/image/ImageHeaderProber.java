@@ -0,0 +1,373 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.image;
+
+import net.distilledcode.aem.ui.touch.support.impl.requestprocessing.BufferPool;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.Dimension;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Optional;
+
+/**
+ * Reads the dimensions of JPEG, PNG, GIF, WebP and TIFF images from their headers, without
+ * decoding the image. The stream is read through a small pooled buffer, segments that don't
+ * contain the dimensions are skipped and probing gives up after {@link #MAX_SCAN_BYTES}, so
+ * that large images are never read entirely. The dimensions of TIFF images are stored in an
+ * image file directory that may be located anywhere in the file, which is read with
+ * {@link RandomAccess} if available.
+ */
+public final class ImageHeaderProber {
+
+    /**
+     * The maximum number of bytes read or skipped before probing gives up, large enough for
+     * the EXIF and ICC segments preceding the frame header of typical JPEG images.
+     */
+    static final int MAX_SCAN_BYTES = 256 * 1024;
+
+    private static final BufferPool BUFFERS = new BufferPool(4096, 64);
+
+    private ImageHeaderProber() {
+    }
+
+    /**
+     * Random access to the bytes of an image, e.g. backed by {@link javax.jcr.Binary#read(byte[], long)}.
+     */
+    @FunctionalInterface
+    public interface RandomAccess {
+
+        /**
+         * @return the number of bytes read into {@code buffer} starting at its first element, at
+         * most {@code buffer.length}, or {@code -1} if {@code position} is at or beyond the end of
+         * the image
+         * @throws IOException if the image cannot be read
+         */
+        int read(@NotNull byte[] buffer, long position) throws IOException;
+    }
+
+    /**
+     * @param inputStream The image, not closed by this method.
+     * @return the dimensions of the image, or an empty {@code Optional} if the format is not
+     * supported or the dimensions could not be found within the scan limit
+     * @throws IOException if the stream cannot be read
+     */
+    @NotNull
+    public static Optional<Dimension> probe(@NotNull InputStream inputStream) throws IOException {
+        return probe(inputStream, null);
+    }
+
+    /**
+     * @param inputStream The image, not closed by this method.
+     * @param randomAccess Random access to the same image, used to read data located beyond the
+     * scan limit, or {@code null} to only read the stream.
+     * @return the dimensions of the image, or an empty {@code Optional} if the format is not
+     * supported or the dimensions could not be found within the scan limit
+     * @throws IOException if the image cannot be read
+     */
+    @NotNull
+    public static Optional<Dimension> probe(@NotNull InputStream inputStream, @Nullable RandomAccess randomAccess)
+            throws IOException {
+        final byte[] buffer = BUFFERS.acquire();
+        try {
+            final HeaderReader reader = new HeaderReader(inputStream, buffer);
+            if (!reader.ensure(12)) {
+                return Optional.empty();
+            }
+            if (reader.matches(0, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)) {
+                return probePng(reader);
+            } else if (reader.matches(0, 'G', 'I', 'F', '8')) {
+                return probeGif(reader);
+            } else if (reader.matches(0, 'R', 'I', 'F', 'F') && reader.matches(8, 'W', 'E', 'B', 'P')) {
+                return probeWebP(reader);
+            } else if (reader.matches(0, 0xFF, 0xD8)) {
+                return probeJpeg(reader);
+            } else if (reader.matches(0, 'I', 'I', 0x2A, 0x00) || reader.matches(0, 'M', 'M', 0x00, 0x2A)) {
+                return probeTiff(reader, randomAccess);
+            }
+            return Optional.empty();
+        } catch (EOFException e) {
+            // truncated image or scan limit reached
+            return Optional.empty();
+        } finally {
+            BUFFERS.release(buffer);
+        }
+    }
+
+    private static Optional<Dimension> probePng(HeaderReader reader) throws IOException {
+        // the IHDR chunk must come first
+        if (!reader.ensure(24) || !reader.matches(12, 'I', 'H', 'D', 'R')) {
+            return Optional.empty();
+        }
+        reader.skip(16);
+        return dimension(reader.u32(true), reader.u32(true));
+    }
+
+    private static Optional<Dimension> probeGif(HeaderReader reader) throws IOException {
+        reader.skip(6);
+        return dimension(reader.u16(false), reader.u16(false));
+    }
+
+    private static Optional<Dimension> probeWebP(HeaderReader reader) throws IOException {
+        if (!reader.ensure(30)) {
+            return Optional.empty();
+        }
+        if (reader.matches(12, 'V', 'P', '8', ' ')) {
+            // lossy: frame tag and start code precede the 14 bit dimensions
+            reader.skip(26);
+            return dimension(reader.u16(false) & 0x3FFF, reader.u16(false) & 0x3FFF);
+        } else if (reader.matches(12, 'V', 'P', '8', 'L')) {
+            // lossless: signature byte followed by 14 bit dimensions minus one, packed into 28 bits
+            reader.skip(21);
+            final long bits = reader.u32(false);
+            return dimension((bits & 0x3FFF) + 1, ((bits >> 14) & 0x3FFF) + 1);
+        } else if (reader.matches(12, 'V', 'P', '8', 'X')) {
+            // extended: 24 bit canvas dimensions minus one
+            reader.skip(24);
+            return dimension(reader.u24(false) + 1, reader.u24(false) + 1);
+        }
+        return Optional.empty();
+    }
+
+    private static Optional<Dimension> probeJpeg(HeaderReader reader) throws IOException {
+        reader.skip(2);
+        while (true) {
+            if (reader.u8() != 0xFF) {
+                return Optional.empty();
+            }
+            int marker = reader.u8();
+            while (marker == 0xFF) {
+                // fill bytes
+                marker = reader.u8();
+            }
+            if (marker == 0x01 || marker >= 0xD0 && marker <= 0xD8) {
+                // markers without segment
+                continue;
+            }
+            if (marker == 0xD9 || marker == 0xDA) {
+                // end of image or start of scan before any frame header
+                return Optional.empty();
+            }
+            final int length = reader.u16(true);
+            if (length < 2) {
+                // the length includes its own two bytes
+                return Optional.empty();
+            }
+            if (isStartOfFrame(marker)) {
+                reader.skip(1); // sample precision
+                final int height = reader.u16(true);
+                final int width = reader.u16(true);
+                return dimension(width, height);
+            }
+            reader.skip(length - 2);
+        }
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        // SOF0 to SOF15, except DHT, JPG and DAC, which share the range
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    private static Optional<Dimension> probeTiff(HeaderReader reader, @Nullable RandomAccess randomAccess)
+            throws IOException {
+        final boolean bigEndian = reader.matches(0, 'M', 'M');
+        reader.skip(4);
+        final long ifdOffset = reader.u32(bigEndian);
+        if (ifdOffset < 8) {
+            return Optional.empty();
+        }
+        if (randomAccess != null) {
+            // the directory is usually written after the image data
+            reader.seek(randomAccess, ifdOffset);
+        } else {
+            reader.skip(ifdOffset - 8);
+        }
+        final int entries = reader.u16(bigEndian);
+        long width = -1;
+        long height = -1;
+        for (int i = 0; i < entries && (width < 0 || height < 0); i++) {
+            final int tag = reader.u16(bigEndian);
+            final int type = reader.u16(bigEndian);
+            reader.skip(4); // count
+            final long value;
+            if (type == 3) { // SHORT
+                value = reader.u16(bigEndian);
+                reader.skip(2);
+            } else if (type == 4) { // LONG
+                value = reader.u32(bigEndian);
+            } else {
+                reader.skip(4);
+                continue;
+            }
+            if (tag == 256) {
+                width = value;
+            } else if (tag == 257) {
+                height = value;
+            }
+        }
+        return dimension(width, height);
+    }
+
+    private static Optional<Dimension> dimension(long width, long height) {
+        if (width <= 0 || height <= 0 || width > Integer.MAX_VALUE || height > Integer.MAX_VALUE) {
+            return Optional.empty();
+        }
+        return Optional.of(new Dimension((int) width, (int) height));
+    }
+
+    /**
+     * Sequential reader over an {@code InputStream}, using a fixed buffer that allows to peek
+     * at upcoming bytes. Skipped bytes that are not buffered are skipped in the stream. After
+     * {@link #seek(RandomAccess, long)} the reader continues with random access instead.
+     */
+    private static class HeaderReader {
+
+        private final InputStream inputStream;
+
+        private final byte[] buffer;
+
+        private int position;
+
+        private int limit;
+
+        // number of bytes read from or skipped in the stream
+        private long consumed;
+
+        @Nullable
+        private RandomAccess randomAccess;
+
+        // position of the next byte read with random access
+        private long randomAccessPosition;
+
+        private HeaderReader(InputStream inputStream, byte[] buffer) {
+            this.inputStream = inputStream;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Ensures that at least {@code n} bytes are buffered, {@code n} must not exceed the buffer size.
+         */
+        private boolean ensure(int n) throws IOException {
+            while (limit - position < n) {
+                if (consumed >= MAX_SCAN_BYTES) {
+                    return false;
+                }
+                final int read;
+                if (randomAccess != null) {
+                    // random access fills the buffer from its start, buffered bytes are read again
+                    randomAccessPosition -= limit - position;
+                    position = 0;
+                    limit = 0;
+                    read = randomAccess.read(buffer, randomAccessPosition);
+                } else {
+                    if (position > 0) {
+                        System.arraycopy(buffer, position, buffer, 0, limit - position);
+                        limit -= position;
+                        position = 0;
+                    }
+                    read = inputStream.read(buffer, limit, buffer.length - limit);
+                }
+                if (read <= 0) {
+                    return false;
+                }
+                limit += read;
+                consumed += read;
+                randomAccessPosition += read;
+            }
+            return true;
+        }
+
+        private boolean matches(int offset, int... bytes) throws IOException {
+            if (!ensure(offset + bytes.length)) {
+                return false;
+            }
+            for (int i = 0; i < bytes.length; i++) {
+                if ((buffer[position + offset + i] & 0xFF) != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int u8() throws IOException {
+            if (!ensure(1)) {
+                throw new EOFException();
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        private int u16(boolean bigEndian) throws IOException {
+            final int b0 = u8();
+            final int b1 = u8();
+            return bigEndian ? b0 << 8 | b1 : b1 << 8 | b0;
+        }
+
+        private long u24(boolean bigEndian) throws IOException {
+            final long b0 = u8();
+            final long b1 = u8();
+            final long b2 = u8();
+            return bigEndian ? b0 << 16 | b1 << 8 | b2 : b2 << 16 | b1 << 8 | b0;
+        }
+
+        private long u32(boolean bigEndian) throws IOException {
+            final long first = u16(bigEndian);
+            final long second = u16(bigEndian);
+            return bigEndian ? first << 16 | second : second << 16 | first;
+        }
+
+        /**
+         * Discards the buffer and continues reading at the given position of the image.
+         */
+        private void seek(@NotNull RandomAccess randomAccess, long position) {
+            this.randomAccess = randomAccess;
+            this.randomAccessPosition = position;
+            this.position = 0;
+            this.limit = 0;
+        }
+
+        private void skip(long n) throws IOException {
+            if (n < 0) {
+                throw new IllegalArgumentException("Cannot skip backwards");
+            }
+            final int buffered = (int) Math.min(n, limit - position);
+            position += buffered;
+            long remaining = n - buffered;
+            if (remaining <= 0) {
+                return;
+            }
+            if (randomAccess != null) {
+                randomAccessPosition += remaining;
+                return;
+            }
+            if (consumed + remaining > MAX_SCAN_BYTES) {
+                throw new EOFException("Scan limit reached");
+            }
+            while (remaining > 0) {
+                final long skipped = inputStream.skip(remaining);
+                if (skipped > 0) {
+                    remaining -= skipped;
+                } else if (inputStream.read() >= 0) {
+                    remaining--;
+                } else {
+                    throw new EOFException();
+                }
+            }
+            consumed += n - buffered;
+        }
+    }
+}
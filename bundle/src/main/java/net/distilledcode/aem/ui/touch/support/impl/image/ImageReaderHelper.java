@@ -18,27 +18,92 @@ package net.distilledcode.aem.ui.touch.support.impl.image;
 import org.apache.sling.api.resource.Resource;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
 import javax.imageio.stream.ImageInputStream;
 import java.awt.Dimension;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
 
+/**
+ * Reads images with {@code ImageIO}, selecting the reader per format. The number of bytes each
+ * reader reads and the time it takes to determine the width of an image are recorded per format.
+ * Readers that read more than {@link #DEMOTION_THRESHOLD_BYTES} for it, i.e. that read the whole
+ * image instead of its header, are demoted and only used if no other reader is available. Readers
+ * known to do so are demoted from the start. The selected reader is cached per format.
+ * <br>
+ * Formats are identified by a normalized name, whether they are given as MIME type or as the
+ * format name of a reader, e.g. {@code image/jpeg}, {@code JPEG} and {@code jpg} are all {@code jpeg}.
+ */
 public class ImageReaderHelper {
 
+    private static final Logger LOG = LoggerFactory.getLogger(ImageReaderHelper.class);
+
+    static final long DEMOTION_THRESHOLD_BYTES = 1024 * 1024;
+
+    // readers that read the whole image to determine its width
+    private static final Set<String> KNOWN_DEMOTED = Collections.singleton(
+            "ch.randelshofer.media.jpeg.CMYKJPEGImageReader");
+
+    private static final Map<String, String> FORMAT_ALIASES;
+
+    static {
+        final Map<String, String> aliases = new HashMap<>();
+        aliases.put("jpg", "jpeg");
+        aliases.put("pjpeg", "jpeg");
+        aliases.put("tif", "tiff");
+        aliases.put("ms-bmp", "bmp");
+        aliases.put("vnd.wap.wbmp", "wbmp");
+        FORMAT_ALIASES = Collections.unmodifiableMap(aliases);
+    }
+
+    // statistics keyed by format and reader class
+    private static final Map<String, ReaderStatistics> STATISTICS = new ConcurrentHashMap<>();
+
+    // the provider of the selected reader, keyed by format
+    private static final Map<String, ImageReaderSpi> SELECTED = new ConcurrentHashMap<>();
+
     private final Supplier<InputStream> imageSupplier;
 
+    // the normalized format of the MIME type, if known
+    @Nullable
+    private final String format;
+
     public static ImageReaderHelper from(final Supplier<InputStream> imageSuplier) {
-        return new ImageReaderHelper(imageSuplier);
+        return new ImageReaderHelper(imageSuplier, null);
     }
 
-    private ImageReaderHelper(Supplier<InputStream> imageSupplier) {
+    /**
+     * @param imageSupplier Supplies the image.
+     * @param mimeType The MIME type of the image, if known, used to reuse the reader selected for it.
+     * @return a helper reading the supplied image
+     */
+    public static ImageReaderHelper from(final Supplier<InputStream> imageSupplier, @Nullable final String mimeType) {
+        return new ImageReaderHelper(imageSupplier, mimeType);
+    }
+
+    private ImageReaderHelper(Supplier<InputStream> imageSupplier, @Nullable String mimeType) {
         this.imageSupplier = imageSupplier;
+        this.format = mimeType == null ? null : getFormatKey(mimeType);
     }
 
     @Nullable
@@ -51,38 +116,242 @@ public class ImageReaderHelper {
         return new Dimension(reader.getWidth(0), reader.getHeight(0));
     }
 
+    /**
+     * @return the statistics of all readers used so far
+     */
+    @NotNull
+    public static List<ReaderStatistics> getReaderStatistics() {
+        return new ArrayList<>(STATISTICS.values());
+    }
+
     public <R> Optional<R> withImageReader(ThrowingFunction<ImageReader, R, IOException> action) throws IOException {
         final InputStream inputStream = imageSupplier.get();
         if (inputStream == null) {
             return Optional.empty();
         }
-        try (final ImageInputStream imageInputStream = ImageIO.createImageInputStream(inputStream)) {
+        // readers may seek back, so the position of the image input stream does not tell how much was read
+        final CountingInputStream countingInputStream = new CountingInputStream(inputStream);
+        try (final ImageInputStream imageInputStream = ImageIO.createImageInputStream(countingInputStream)) {
             final ImageReader imageReader = getImageReader(imageInputStream);
             if (imageReader != null) {
-                final R result = action.apply(imageReader);
-                return Optional.ofNullable(result);
+                try {
+                    measure(imageReader, countingInputStream);
+                    final R result = action.apply(imageReader);
+                    return Optional.ofNullable(result);
+                } finally {
+                    imageReader.dispose();
+                }
             }
             return Optional.empty();
+        } finally {
+            inputStream.close();
         }
     }
 
-    private static ImageReader getImageReader(ImageInputStream imageInputStream) {
-        final Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
-        while (readers.hasNext()) {
-            ImageReader reader = readers.next();
-            // TODO: detect and blacklist non conforming implementations automatically on first use
-            // skip reader that caches entire image on #getWidth(0), preventing ImageReadParams to take effect
-            if (readers.hasNext() && "ch.randelshofer.media.jpeg.CMYKJPEGImageReader".equals(reader.getClass().getName())) {
+    @Nullable
+    private ImageReader getImageReader(ImageInputStream imageInputStream) throws IOException {
+        final ImageReaderSpi selected = format == null ? null : SELECTED.get(format);
+        if (selected != null && IIORegistry.getDefaultInstance().contains(selected) && selected.canDecodeInput(imageInputStream)) {
+            return createReader(selected, imageInputStream);
+        }
+
+        final List<ImageReader> readers = new ArrayList<>();
+        ImageIO.getImageReaders(imageInputStream).forEachRemaining(readers::add);
+        final Iterator<ImageReader> iterator = readers.iterator();
+        ImageReader reader = null;
+        while (iterator.hasNext()) {
+            final ImageReader candidate = iterator.next();
+            // demoted readers are only used if there is no other reader
+            if (iterator.hasNext() && getStatistics(getFormat(candidate), candidate).isDemoted()) {
+                candidate.dispose();
                 continue;
             }
+            reader = candidate;
+            break;
+        }
+        while (iterator.hasNext()) {
+            iterator.next().dispose();
+        }
+        if (reader == null) {
+            return null;
+        }
+        if (format != null && reader.getOriginatingProvider() != null) {
+            SELECTED.put(format, reader.getOriginatingProvider());
+        }
+        reader.setInput(imageInputStream);
+        return reader;
+    }
+
+    @NotNull
+    private static ImageReader createReader(ImageReaderSpi provider, ImageInputStream imageInputStream) throws IOException {
+        final ImageReader reader = provider.createReaderInstance();
+        reader.setInput(imageInputStream);
+        return reader;
+    }
+
+    private static void measure(ImageReader reader, CountingInputStream inputStream) throws IOException {
+        final long start = System.nanoTime();
+        // readers cache the width, so calling it upfront costs nothing extra
+        reader.getWidth(0);
+        final long nanos = System.nanoTime() - start;
+        // including the bytes read to select the reader
+        final long bytes = inputStream.getCount();
+        final String format = getFormat(reader);
+        final ReaderStatistics statistics = getStatistics(format, reader);
+        statistics.record(nanos, bytes);
+        if (bytes > DEMOTION_THRESHOLD_BYTES && statistics.demote()) {
+            LOG.info("Demoted {} for {}, it read {} bytes to determine the width of an image",
+                    statistics.getReaderClass(), format, bytes);
+            SELECTED.remove(format, reader.getOriginatingProvider());
+        }
+    }
+
+    private static String getFormat(ImageReader reader) throws IOException {
+        return getFormatKey(reader.getFormatName());
+    }
+
+    /**
+     * @param formatOrMimeType A format name or a MIME type.
+     * @return the normalized name of the format
+     */
+    @NotNull
+    static String getFormatKey(@NotNull String formatOrMimeType) {
+        String format = formatOrMimeType.toLowerCase(Locale.ROOT);
+        final int parameters = format.indexOf(';');
+        if (parameters != -1) {
+            format = format.substring(0, parameters);
+        }
+        format = format.trim();
+        if (format.startsWith("image/")) {
+            format = format.substring("image/".length());
+        }
+        if (format.startsWith("x-")) {
+            format = format.substring("x-".length());
+        }
+        return FORMAT_ALIASES.getOrDefault(format, format);
+    }
+
+    private static ReaderStatistics getStatistics(String format, ImageReader reader) {
+        final String readerClass = reader.getClass().getName();
+        return STATISTICS.computeIfAbsent(format + ":" + readerClass,
+                key -> new ReaderStatistics(format, readerClass, KNOWN_DEMOTED.contains(readerClass)));
+    }
+
+    /**
+     * Counts the bytes read from or skipped in the underlying stream.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        private CountingInputStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+        private long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
 
-            reader.setInput(imageInputStream);
-            return reader;
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
         }
-        return null;
     }
 
     public interface ThrowingFunction<S, R, T extends Exception> {
         R apply(final S s) throws T;
     }
+
+    /**
+     * Statistics of a reader for a format.
+     */
+    public static class ReaderStatistics {
+
+        private final String format;
+
+        private final String readerClass;
+
+        private final AtomicLong calls = new AtomicLong();
+
+        private final AtomicLong nanos = new AtomicLong();
+
+        private final AtomicLong bytes = new AtomicLong();
+
+        private final AtomicBoolean demoted;
+
+        private ReaderStatistics(String format, String readerClass, boolean demoted) {
+            this.format = format;
+            this.readerClass = readerClass;
+            this.demoted = new AtomicBoolean(demoted);
+        }
+
+        private void record(long nanos, long bytes) {
+            this.calls.incrementAndGet();
+            this.nanos.addAndGet(nanos);
+            this.bytes.addAndGet(bytes);
+        }
+
+        // returns true if the reader was not demoted before
+        private boolean demote() {
+            return demoted.compareAndSet(false, true);
+        }
+
+        public String getFormat() {
+            return format;
+        }
+
+        public String getReaderClass() {
+            return readerClass;
+        }
+
+        public long getCalls() {
+            return calls.get();
+        }
+
+        public long getNanos() {
+            return nanos.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public boolean isDemoted() {
+            return demoted.get();
+        }
+
+        @Override
+        public String toString() {
+            final long calls = getCalls();
+            return format + " " + readerClass + ": calls=" + calls
+                    + ", avgMillis=" + (calls == 0 ? 0 : getNanos() / calls / 1_000_000.0)
+                    + ", avgBytes=" + (calls == 0 ? 0 : getBytes() / calls)
+                    + (isDemoted() ? ", demoted" : "");
+        }
+    }
 }
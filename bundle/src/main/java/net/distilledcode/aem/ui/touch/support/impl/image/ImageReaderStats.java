@@ -0,0 +1,44 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.image;
+
+import org.osgi.service.component.annotations.Component;
+
+@Component(
+        service = ImageReaderStatsMBean.class,
+        property = {
+                "jmx.objectname=net.distilledcode.aem.ui.touch.support:type=ImageReaderStats"
+        }
+)
+public class ImageReaderStats implements ImageReaderStatsMBean {
+
+    @Override
+    public String[] getReaderStatistics() {
+        return ImageReaderHelper.getReaderStatistics().stream()
+                .map(ImageReaderHelper.ReaderStatistics::toString)
+                .sorted()
+                .toArray(String[]::new);
+    }
+
+    @Override
+    public String[] getDemotedReaders() {
+        return ImageReaderHelper.getReaderStatistics().stream()
+                .filter(ImageReaderHelper.ReaderStatistics::isDemoted)
+                .map(statistics -> statistics.getFormat() + " " + statistics.getReaderClass())
+                .sorted()
+                .toArray(String[]::new);
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.image;
+
+/**
+ * Exposes the statistics of the {@code ImageIO} readers used to read asset renditions.
+ */
+public interface ImageReaderStatsMBean {
+
+    /**
+     * @return one line per format and reader, with the number of calls, the average time and
+     * the average number of bytes read to determine the width of an image
+     */
+    String[] getReaderStatistics();
+
+    /**
+     * @return the classes of the readers that were demoted, because they read whole images
+     */
+    String[] getDemotedReaders();
+}
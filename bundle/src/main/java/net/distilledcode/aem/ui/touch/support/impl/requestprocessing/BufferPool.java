@@ -0,0 +1,111 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.requestprocessing;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe pool of equally sized {@code byte[]} buffers. Buffers that are
+ * not returned to the pool are simply garbage collected, hence the pool never leaks memory.
+ * Returned buffers beyond the pool's capacity are dropped.
+ */
+public class BufferPool {
+
+    /**
+     * Pool shared by all internal requests: up to 256 buffers of 8KB, i.e. 2MB.
+     */
+    public static final BufferPool DEFAULT = new BufferPool(8192, 256);
+
+    private final int bufferSize;
+
+    private final int capacity;
+
+    private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    private final AtomicLong allocations = new AtomicLong();
+
+    private final AtomicLong reuses = new AtomicLong();
+
+    public BufferPool(int bufferSize, int capacity) {
+        if (bufferSize <= 0 || capacity < 0) {
+            throw new IllegalArgumentException("Invalid buffer size or capacity: " + bufferSize + ", " + capacity);
+        }
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return a pooled buffer or a newly allocated buffer if the pool is empty
+     */
+    @NotNull
+    public byte[] acquire() {
+        final byte[] buffer = buffers.poll();
+        if (buffer != null) {
+            pooled.decrementAndGet();
+            reuses.incrementAndGet();
+            return buffer;
+        }
+        allocations.incrementAndGet();
+        return new byte[bufferSize];
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not use the buffer afterwards.
+     *
+     * @param buffer A buffer previously acquired from this pool.
+     */
+    public void release(@NotNull byte[] buffer) {
+        if (buffer.length != bufferSize) {
+            throw new IllegalArgumentException("Buffer was not acquired from this pool");
+        }
+        if (pooled.incrementAndGet() <= capacity) {
+            buffers.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of buffers allocated because the pool was empty
+     */
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    /**
+     * @return the number of buffers served from the pool
+     */
+    public long getReuses() {
+        return reuses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{bufferSize=" + bufferSize + ", capacity=" + capacity + ", pooled=" + pooled
+                + ", allocations=" + allocations + ", reuses=" + reuses + "}";
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.requestprocessing;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * An {@code OutputStream} that collects written bytes in a list of fixed-size chunks.
+ * Unlike a {@code ByteArrayOutputStream} it never copies data in order to grow. Chunks
+ * are acquired from a {@link BufferPool} and returned to it once they are no longer needed.
+ * <br>
+ * The collected bytes can be accessed without copying via {@link #toByteBuffers()}. The
+ * returned buffers are only valid until the stream is reset or consumed.
+ * <br>
+ * The collected bytes can be read exactly once via {@link #toInputStream()}. The returned
+ * {@code InputStream} releases each chunk as soon as it has been read completely, which
+ * allows consumers that process the data incrementally (e.g. a streaming parser) to run
+ * with decreasing memory usage.
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+    private final BufferPool pool;
+
+    private final int chunkSize;
+
+    private final Deque<byte[]> chunks = new ArrayDeque<>();
+
+    // number of bytes used in the last chunk
+    private int position;
+
+    private long size;
+
+    private boolean consumed;
+
+    public ChunkedOutputStream() {
+        this(BufferPool.DEFAULT);
+    }
+
+    public ChunkedOutputStream(@NotNull BufferPool pool) {
+        this.pool = pool;
+        this.chunkSize = pool.getBufferSize();
+    }
+
+    @Override
+    public void write(int b) {
+        ensureWritable();
+        if (chunks.isEmpty() || position == chunkSize) {
+            addChunk();
+        }
+        chunks.getLast()[position++] = (byte) b;
+        size++;
+    }
+
+    @Override
+    public void write(@NotNull byte[] b, int off, int len) {
+        ensureWritable();
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        int remaining = len;
+        int offset = off;
+        while (remaining > 0) {
+            if (chunks.isEmpty() || position == chunkSize) {
+                addChunk();
+            }
+            final int count = Math.min(remaining, chunkSize - position);
+            System.arraycopy(b, offset, chunks.getLast(), position, count);
+            position += count;
+            offset += count;
+            remaining -= count;
+        }
+        size += len;
+    }
+
+    /**
+     * @return the number of bytes written to this stream
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Discards all bytes written so far and returns the chunks to the pool.
+     */
+    public void reset() {
+        ensureWritable();
+        releaseChunks();
+        position = 0;
+        size = 0;
+    }
+
+    /**
+     * Returns all chunks to the pool. The stream cannot be used anymore afterwards, and neither
+     * can any {@code InputStream} or {@code ByteBuffer} previously returned by it.
+     */
+    public void release() {
+        consumed = true;
+        releaseChunks();
+    }
+
+    /**
+     * Returns read-only views of the collected bytes without copying them. The views must not
+     * be used after the stream has been reset or consumed.
+     *
+     * @return one {@code ByteBuffer} per chunk
+     */
+    @NotNull
+    public List<ByteBuffer> toByteBuffers() {
+        ensureWritable();
+        final List<ByteBuffer> buffers = new ArrayList<>(chunks.size());
+        int remaining = chunks.size();
+        for (byte[] chunk : chunks) {
+            final int length = --remaining == 0 ? position : chunkSize;
+            buffers.add(ByteBuffer.wrap(chunk, 0, length).asReadOnlyBuffer());
+        }
+        return buffers;
+    }
+
+    /**
+     * Decodes the collected bytes using the given charset. Malformed input is replaced.
+     *
+     * @param charset The charset the bytes were written with.
+     * @return a {@code CharBuffer} containing the decoded characters
+     */
+    @NotNull
+    public CharBuffer toCharBuffer(@NotNull Charset charset) {
+        final CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final CharBuffer chars = CharBuffer.allocate((int) Math.min(Integer.MAX_VALUE - 8,
+                (long) Math.ceil(size * (double) decoder.maxCharsPerByte())));
+        final List<ByteBuffer> buffers = toByteBuffers();
+        // carry over bytes of multi-byte sequences that span two chunks
+        ByteBuffer carry = ByteBuffer.allocate(0);
+        for (int i = 0; i < buffers.size(); i++) {
+            ByteBuffer input = buffers.get(i);
+            if (carry.hasRemaining()) {
+                input = ByteBuffer.allocate(carry.remaining() + input.remaining()).put(carry).put(input);
+                input.flip();
+            }
+            decoder.decode(input, chars, i == buffers.size() - 1);
+            carry = input;
+        }
+        decoder.flush(chars);
+        chars.flip();
+        return chars;
+    }
+
+    /**
+     * Returns an {@code InputStream} over the collected bytes that does not release any chunks.
+     * This method may be called repeatedly and the returned streams may be read concurrently,
+     * as long as no more bytes are written and the stream is neither reset, consumed nor released.
+     *
+     * @return an {@code InputStream} over the bytes written to this stream
+     */
+    @NotNull
+    public InputStream toSharedInputStream() {
+        ensureWritable();
+        final List<InputStream> streams = new ArrayList<>(chunks.size());
+        int remaining = chunks.size();
+        for (byte[] chunk : chunks) {
+            final int length = --remaining == 0 ? position : chunkSize;
+            streams.add(new ByteArrayInputStream(chunk, 0, length));
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    /**
+     * Returns an {@code InputStream} over the collected bytes. This method may only be called once,
+     * because chunks are released while they are read. No more bytes may be written afterwards.
+     *
+     * @return an {@code InputStream} over the bytes written to this stream
+     */
+    @NotNull
+    public InputStream toInputStream() {
+        ensureWritable();
+        consumed = true;
+        return new ChunkInputStream();
+    }
+
+    private void addChunk() {
+        chunks.addLast(pool.acquire());
+        position = 0;
+    }
+
+    private void releaseChunks() {
+        byte[] chunk;
+        while ((chunk = chunks.pollFirst()) != null) {
+            pool.release(chunk);
+        }
+    }
+
+    private void ensureWritable() {
+        if (consumed) {
+            throw new IllegalStateException("The content of the stream has already been consumed");
+        }
+    }
+
+    private class ChunkInputStream extends InputStream {
+
+        private byte[] current;
+
+        private int readPosition;
+
+        private int limit;
+
+        @Override
+        public int read() {
+            if (!nextChunkIfNecessary()) {
+                return -1;
+            }
+            return current[readPosition++] & 0xff;
+        }
+
+        @Override
+        public int read(@NotNull byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!nextChunkIfNecessary()) {
+                return -1;
+            }
+            final int count = Math.min(len, limit - readPosition);
+            System.arraycopy(current, readPosition, b, off, count);
+            readPosition += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return current == null ? 0 : limit - readPosition;
+        }
+
+        @Override
+        public void close() {
+            releaseCurrent();
+            releaseChunks();
+        }
+
+        private void releaseCurrent() {
+            if (current != null) {
+                pool.release(current);
+                current = null;
+            }
+        }
+
+        private boolean nextChunkIfNecessary() {
+            while (current == null || readPosition == limit) {
+                releaseCurrent();
+                if (chunks.isEmpty()) {
+                    return false;
+                }
+                current = chunks.removeFirst();
+                readPosition = 0;
+                limit = chunks.isEmpty() ? position : chunkSize;
+            }
+            return true;
+        }
+    }
+}
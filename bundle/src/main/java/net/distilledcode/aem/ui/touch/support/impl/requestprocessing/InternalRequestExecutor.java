@@ -0,0 +1,286 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.requestprocessing;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestProgressTracker;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes internal GET requests via the {@link SlingRequestProcessor}, either synchronously in
+ * the caller's thread or asynchronously on a bounded thread pool.
+ * <br>
+ * Asynchronous requests are processed with a clone of the caller's {@code ResourceResolver}, i.e.
+ * with the same user and permissions, because a {@code ResourceResolver} must not be used
+ * concurrently. Identical requests (same user and URL) that are in flight at the same time are
+ * coalesced, i.e. they are only processed once and all callers receive the same response. Each
+ * caller must release the response once it is done with it, see {@link InternalResponse}.
+ */
+@Component(service = InternalRequestExecutor.class)
+@Designate(ocd = InternalRequestExecutor.Config.class)
+public class InternalRequestExecutor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InternalRequestExecutor.class);
+
+    @ObjectClassDefinition(name = "Distilled Code ~ Internal Request Executor")
+    @interface Config {
+        @AttributeDefinition(description = "Number of threads processing asynchronous internal requests. " +
+                "A value of 0 disables asynchronous processing, i.e. requests are processed in the caller's thread.")
+        int threads() default 4;
+
+        @AttributeDefinition(description = "Maximum time in seconds to wait for the response of an asynchronous internal request.")
+        long timeout_seconds() default 30;
+    }
+
+    @Reference(policyOption = ReferencePolicyOption.GREEDY)
+    private SlingRequestProcessor requestProcessor;
+
+    private final Map<String, InFlight> inFlight = new ConcurrentHashMap<>();
+
+    private volatile ExecutorService executorService;
+
+    private long timeoutMillis;
+
+    @Activate
+    public void activate(Config config) {
+        this.timeoutMillis = TimeUnit.SECONDS.toMillis(Math.max(1, config.timeout_seconds()));
+        if (config.threads() > 0) {
+            this.executorService = Executors.newFixedThreadPool(config.threads(), new NamedThreadFactory());
+        }
+    }
+
+    @Deactivate
+    public void deactivate() {
+        if (executorService != null) {
+            executorService.shutdownNow();
+            executorService = null;
+        }
+        inFlight.clear();
+    }
+
+    /**
+     * @return {@code true} if requests can be processed asynchronously
+     */
+    public boolean isAsync() {
+        return executorService != null;
+    }
+
+    /**
+     * Processes an internal request asynchronously with a clone of the given resolver. If asynchronous
+     * processing is disabled, the request is processed in the caller's thread with the given resolver.
+     *
+     * @param resolver The caller's resolver.
+     * @param url The URL to request.
+     * @return a future completing with the response
+     */
+    @NotNull
+    public CompletableFuture<InternalResponse> submit(@NotNull ResourceResolver resolver, @NotNull String url) {
+        return coalesce(resolver, url, executorService, null);
+    }
+
+    /**
+     * Processes an internal request in the caller's thread with the request's resolver, unless
+     * the same request is already in flight, in which case its response is awaited.
+     *
+     * @param request The current request.
+     * @param url The URL to request.
+     * @return the response
+     * @throws IOException if the request fails or times out
+     */
+    @NotNull
+    public InternalResponse execute(@NotNull SlingHttpServletRequest request, @NotNull String url) throws IOException {
+        final Object requestProgressTracker = request.getAttribute(RequestProgressTracker.class.getName());
+        return await(coalesce(request.getResourceResolver(), url, null, requestProgressTracker));
+    }
+
+    /**
+     * Waits for the given future for no longer than the configured timeout.
+     *
+     * @param future A future returned by {@link #submit(ResourceResolver, String)}.
+     * @return the response
+     * @throws IOException if the request fails or times out
+     */
+    @NotNull
+    public InternalResponse await(@NotNull CompletableFuture<InternalResponse> future) throws IOException {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            discard(future);
+            throw new IOException("Interrupted while waiting for internal request", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Internal request failed", e.getCause());
+        } catch (TimeoutException e) {
+            discard(future);
+            throw new IOException("Timed out waiting for internal request", e);
+        }
+    }
+
+    /**
+     * Gives up the caller's reference to the response of a future that is not awaited, as soon
+     * as the response is available.
+     *
+     * @param future A future returned by {@link #submit(ResourceResolver, String)}.
+     */
+    public static void discard(@NotNull CompletableFuture<InternalResponse> future) {
+        future.whenComplete((response, e) -> {
+            if (response != null) {
+                response.close();
+            }
+        });
+    }
+
+    @NotNull
+    private CompletableFuture<InternalResponse> coalesce(@NotNull ResourceResolver resolver, @NotNull String url,
+            @Nullable ExecutorService executor, @Nullable Object requestProgressTracker) {
+        final String key = resolver.getUserID() + ":" + url;
+        final InFlight created = new InFlight();
+        final InFlight request = inFlight.compute(key, (k, existing) -> {
+            if (existing != null) {
+                existing.callers++;
+                return existing;
+            }
+            return created;
+        });
+        if (request != created) {
+            LOG.debug("Joining in-flight request for '{}'", url);
+            return request.future;
+        }
+        final CompletableFuture<InternalResponse> future = created.future;
+
+        if (executor == null) {
+            try {
+                complete(key, created, process(resolver, url, requestProgressTracker));
+            } catch (IOException | ServletException | RuntimeException e) {
+                inFlight.remove(key, created);
+                future.completeExceptionally(e);
+            }
+            return future;
+        }
+
+        // the clone is created in the caller's thread, because the resolver must not be used concurrently
+        final ResourceResolver clone;
+        try {
+            clone = resolver.clone(null);
+        } catch (LoginException e) {
+            inFlight.remove(key, created);
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    complete(key, created, process(clone, url, null));
+                } catch (IOException | ServletException | RuntimeException e) {
+                    inFlight.remove(key, created);
+                    future.completeExceptionally(e);
+                } finally {
+                    clone.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(key, created);
+            clone.close();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Removes the request from the in-flight requests and completes it with a response that
+     * holds one reference per caller. No caller can join once the request has been removed.
+     */
+    private void complete(@NotNull String key, @NotNull InFlight request, @NotNull InternalResponse response) {
+        final int[] callers = {1};
+        inFlight.computeIfPresent(key, (k, existing) -> {
+            if (existing == request) {
+                callers[0] = existing.callers;
+                return null;
+            }
+            return existing;
+        });
+        response.retain(callers[0] - 1);
+        request.future.complete(response);
+    }
+
+    @NotNull
+    private InternalResponse process(@NotNull ResourceResolver resolver, @NotNull String url,
+                                     @Nullable Object requestProgressTracker) throws IOException, ServletException {
+        final HttpServletRequest syntheticRequest = SyntheticHttpServletRequest.builder(url).build();
+        if (requestProgressTracker != null) {
+            syntheticRequest.setAttribute(RequestProgressTracker.class.getName(), requestProgressTracker);
+        }
+        final ChunkedOutputStream outputStream = new ChunkedOutputStream();
+        try (final SyntheticHttpServletResponse syntheticResponse = new SyntheticHttpServletResponse(outputStream)) {
+            requestProcessor.processRequest(syntheticRequest, syntheticResponse, resolver);
+            syntheticResponse.flushBuffer();
+            return new InternalResponse(url, syntheticResponse.getStatusCode(), outputStream);
+        } catch (IOException | ServletException | RuntimeException e) {
+            outputStream.release();
+            throw e;
+        }
+    }
+
+    private static class InFlight {
+
+        private final CompletableFuture<InternalResponse> future = new CompletableFuture<>();
+
+        // guarded by the lock of the in-flight map's entry, i.e. only modified in compute methods
+        private int callers = 1;
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NotNull Runnable runnable) {
+            final Thread thread = new Thread(runnable, "distilledcode-internal-request-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
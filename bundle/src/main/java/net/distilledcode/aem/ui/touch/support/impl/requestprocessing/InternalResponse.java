@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.requestprocessing;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable result of an internal request executed by the {@link InternalRequestExecutor}.
+ * Results may be shared by several callers, therefore the response holds one reference per
+ * caller. Each caller either reads the body once via {@link #openStream()} and closes the
+ * stream, or {@link #close() closes} the response without reading it. The pooled chunks of
+ * the body are released when the last reference is gone.
+ */
+public class InternalResponse implements Closeable {
+
+    private final String url;
+
+    private final int statusCode;
+
+    private final ChunkedOutputStream body;
+
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    InternalResponse(@NotNull String url, int statusCode, @NotNull ChunkedOutputStream body) {
+        this.url = url;
+        this.statusCode = statusCode;
+        this.body = body;
+    }
+
+    @NotNull
+    public String getUrl() {
+        return url;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public boolean isSuccess() {
+        return 200 <= statusCode && statusCode < 300;
+    }
+
+    /**
+     * Opens the body for the calling caller, which gives up its reference when the returned
+     * stream is closed. The last remaining caller reads the body without copying and releases
+     * each chunk as soon as it has been read.
+     *
+     * @return a new {@code InputStream} over the response body
+     */
+    @NotNull
+    public InputStream openStream() {
+        if (references.compareAndSet(1, 0)) {
+            // no other caller can read the body anymore
+            return body.toInputStream();
+        }
+        final AtomicBoolean closed = new AtomicBoolean();
+        return new FilterInputStream(body.toSharedInputStream()) {
+            @Override
+            public void close() throws IOException {
+                if (closed.compareAndSet(false, true)) {
+                    super.close();
+                    InternalResponse.this.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Gives up the reference of a caller that does not read the body.
+     */
+    @Override
+    public void close() {
+        if (references.decrementAndGet() == 0) {
+            body.release();
+        }
+    }
+
+    void retain(int count) {
+        references.addAndGet(count);
+    }
+
+    @Override
+    public String toString() {
+        return "InternalResponse{url='" + url + "', statusCode=" + statusCode + ", size=" + body.size() + "}";
+    }
+}
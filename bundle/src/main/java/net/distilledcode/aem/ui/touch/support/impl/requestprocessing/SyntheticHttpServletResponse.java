@@ -20,20 +20,35 @@ import org.jetbrains.annotations.NotNull;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
-import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@code HttpServletResponse} implementation for internal requests. The response body is
+ * written directly into the given {@link ChunkedOutputStream}, which acts as the response
+ * buffer: it grows without copying and can be reset until the response is committed by a
+ * flush. The response should be {@link #close() closed} once it is no longer needed, which
+ * flushes it. The chunks are owned by the caller.
+ */
+public class SyntheticHttpServletResponse implements HttpServletResponse, Closeable {
+
+    private static final Pattern CHARSET_PARAMETER = Pattern.compile(";\\s*charset=\"?([^\\s;\"]+)", Pattern.CASE_INSENSITIVE);
 
-public class SyntheticHttpServletResponse implements HttpServletResponse {
+    private final ChunkedOutputStream body;
 
-    private final ResettableBufferedOutputStream outputStream;
+    private final OutputStream outputStream = new BodyOutputStream();
 
     private final Map<String, List<String>> headers = new HashMap<>();
 
@@ -45,7 +60,8 @@ public class SyntheticHttpServletResponse implements HttpServletResponse {
 
     private String statusMessage;
 
-    private String characterEncoding = "ISO-8859-1";
+    // internal responses are parsed as UTF-8 unless a script sets another encoding
+    private String characterEncoding = "UTF-8";
 
     private int contentLength;
     
@@ -55,8 +71,8 @@ public class SyntheticHttpServletResponse implements HttpServletResponse {
 
     private boolean isCommitted;
 
-    public SyntheticHttpServletResponse(OutputStream outputStream) {
-        this.outputStream = new ResettableBufferedOutputStream(outputStream);
+    public SyntheticHttpServletResponse(@NotNull ChunkedOutputStream body) {
+        this.body = body;
     }
 
     @Override
@@ -179,19 +195,28 @@ public class SyntheticHttpServletResponse implements HttpServletResponse {
     }
 
     @Override
-    public PrintWriter getWriter() {
+    public PrintWriter getWriter() throws UnsupportedEncodingException {
         if (servletOutputStream != null) {
             throw new IllegalStateException("OutputStream was already retrieved before");
         }
         if (printWriter == null) {
-            printWriter = new PrintWriter(new OutputStreamWriter(outputStream));
+            final Charset charset;
+            try {
+                charset = Charset.forName(characterEncoding);
+            } catch (IllegalArgumentException e) {
+                throw new UnsupportedEncodingException(characterEncoding);
+            }
+            printWriter = new PrintWriter(new OutputStreamWriter(outputStream, charset));
         }
         return printWriter;
     }
 
     @Override
     public void setCharacterEncoding(String characterEncoding) {
-        this.characterEncoding = characterEncoding;
+        // the encoding cannot be changed once the writer has been retrieved
+        if (printWriter == null && characterEncoding != null) {
+            this.characterEncoding = characterEncoding;
+        }
     }
 
     @Override
@@ -202,16 +227,25 @@ public class SyntheticHttpServletResponse implements HttpServletResponse {
     @Override
     public void setContentType(String contentType) {
         this.contentType = contentType;
+        if (contentType != null) {
+            final Matcher matcher = CHARSET_PARAMETER.matcher(contentType);
+            if (matcher.find()) {
+                setCharacterEncoding(matcher.group(1));
+            }
+        }
     }
 
     @Override
     public void setBufferSize(int size) {
-        throw new UnsupportedOperationException("Not implemented");
+        if (body.size() > 0 || isCommitted) {
+            throw new IllegalStateException("Content has already been written");
+        }
+        // the whole body is buffered, regardless of the requested size
     }
 
     @Override
     public int getBufferSize() {
-        throw new UnsupportedOperationException("Not implemented");
+        return Integer.MAX_VALUE;
     }
 
     @Override
@@ -245,7 +279,7 @@ public class SyntheticHttpServletResponse implements HttpServletResponse {
         if (isCommitted()) {
             throw new IllegalStateException("Response already committed");
         }
-        outputStream.reset();
+        body.reset();
     }
 
     @Override
@@ -258,23 +292,26 @@ public class SyntheticHttpServletResponse implements HttpServletResponse {
         return locale;
     }
 
-    private class ResettableBufferedOutputStream extends BufferedOutputStream{
-        ResettableBufferedOutputStream(OutputStream outputStream) {
-            super(outputStream, 8192);
+    @Override
+    public void close() throws IOException {
+        flushBuffer();
+    }
+
+    private class BodyOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+            body.write(b);
         }
 
-        void reset() {
-            if (SyntheticHttpServletResponse.this.isCommitted) {
-                throw new IllegalStateException("Response already committed");
-            }
-            this.buf = new byte[this.buf.length];
-            this.count = 0;
+        @Override
+        public void write(@NotNull byte[] b, int off, int len) {
+            body.write(b, off, len);
         }
 
         @Override
-        public synchronized void flush() throws IOException {
+        public void flush() {
             SyntheticHttpServletResponse.this.isCommitted = true;
-            super.flush();
         }
     }
 }
@@ -15,41 +15,143 @@
  */
 package net.distilledcode.aem.ui.touch.support.impl.ui;
 
-import net.distilledcode.aem.ui.touch.support.impl.image.ImageReaderHelper;
+import net.distilledcode.aem.ui.touch.support.impl.image.ImageDimensionCache;
+import net.distilledcode.aem.ui.touch.support.impl.image.ImageDimensionCache.Lookup;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
-import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.json.Json;
-import javax.json.JsonArrayBuilder;
-import javax.json.JsonObject;
-import javax.json.JsonObjectBuilder;
-import javax.json.JsonWriter;
 import javax.json.stream.JsonGenerator;
 import javax.servlet.Servlet;
 import javax.servlet.http.HttpServletResponse;
 import java.awt.Dimension;
 import java.io.IOException;
-import java.time.ZonedDateTime;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
+/**
+ * Writes the dimensions of an asset's renditions as JSON. Renditions whose dimensions are neither
+ * cached nor stored in their metadata are probed concurrently, each with a clone of the request's
+ * resolver. Dimensions that are not known when the deadline of the request has passed are omitted;
+ * renditions that are being read when the deadline passes are read to the end in the background, so
+ * that their dimensions are cached for the next request, renditions that are still waiting are not
+ * read anymore. If too many renditions are waiting, they are read in the request's thread.
+ * <br>
+ * Complete responses carry validators derived from the last modification of the asset and its
+ * renditions, incomplete responses carry none, so that they are not reused. A response is complete
+ * if every rendition was either measured or found not to be an image. Conditional requests
+ * are answered before any dimensions are looked up, because the validators are computed from the
+ * {@code jcr:lastModified} properties only, without opening binaries.
+ */
 @Component(service = Servlet.class)
 @SlingServletResourceTypes(
         resourceTypes = "dam:Asset",
         selectors = { "assetreference", "info" },
         extensions = "json"
 )
+@Designate(ocd = AssetReferenceInfoServlet.Config.class)
 public class AssetReferenceInfoServlet extends SlingSafeMethodsServlet {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AssetReferenceInfoServlet.class);
+
+    @ObjectClassDefinition(name = "Distilled Code ~ Asset Reference Info Servlet")
+    @interface Config {
+        @AttributeDefinition(description = "Number of threads reading the dimensions of renditions. " +
+                "A value of 0 disables concurrent reading, i.e. renditions are read in the request's thread.")
+        int threads() default 4;
+
+        @AttributeDefinition(description = "Maximum number of renditions waiting to be read concurrently. " +
+                "Further renditions are read in the request's thread.")
+        int queue_size() default 64;
+
+        @AttributeDefinition(description = "Maximum time in milliseconds to wait for the dimensions of the renditions. " +
+                "Dimensions that are not known by then are omitted from the response.")
+        long deadline_millis() default 2000;
+
+        @AttributeDefinition(description = "Indent the JSON response.")
+        boolean pretty_print() default false;
+
+        @AttributeDefinition(description = "Value of the Cache-Control header of complete responses and of " +
+                "responses to conditional requests. Empty to omit the header.")
+        String cache_control() default "private, no-cache";
+    }
+
+    @Reference(policyOption = ReferencePolicyOption.GREEDY)
+    private ImageDimensionCache dimensionCache;
+
+    private volatile ExecutorService executorService;
+
+    private long deadlineMillis;
+
+    private boolean prettyPrint;
+
+    private String cacheControl;
+
+    @Activate
+    @Modified
+    public void activate(Config config) {
+        this.deadlineMillis = Math.max(0, config.deadline_millis());
+        this.prettyPrint = config.pretty_print();
+        this.cacheControl = config.cache_control() == null ? "" : config.cache_control().trim();
+        final ExecutorService previous = executorService;
+        this.executorService = config.threads() > 0
+                ? new ThreadPoolExecutor(config.threads(), config.threads(), 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(Math.max(1, config.queue_size())), new NamedThreadFactory())
+                : null;
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    @Deactivate
+    public void deactivate() {
+        if (executorService != null) {
+            executorService.shutdownNow();
+            executorService = null;
+        }
+    }
+
     @Override
     protected void doGet(@NotNull SlingHttpServletRequest request, @NotNull SlingHttpServletResponse response) throws IOException {
         final ResourceResolver resolver = request.getResourceResolver();
@@ -65,55 +167,84 @@ public class AssetReferenceInfoServlet extends SlingSafeMethodsServlet {
             return;
         }
 
-        final String mimeType = original.getValueMap().get("jcr:content/jcr:mimeType", "");
-        final JsonObjectBuilder json = Json.createObjectBuilder()
-                .add("name", assetResource.getName())
-                .add("url", getUrl(resolver::map, assetResource))
-                .add("thumbnailUrl", getThummbnailUrl(resolver::map, assetResource))
-                .add("mimeType", mimeType);
-
-        getDimensions(original).ifPresent(dimension -> {
-            json.add("width", dimension.width)
-                .add("height", dimension.height);
-        });
-
-        final JsonArrayBuilder renditionsJson = Json.createArrayBuilder();
-        boolean hasSeenWebRendition = false;
+        final List<Resource> otherRenditions = new ArrayList<>();
         for (Resource rendition : renditions.getChildren()) {
-            final String name = rendition.getName();
-            if (Objects.equals(name, "original")) {
-                continue;
+            if (!Objects.equals(rendition.getName(), "original")) {
+                otherRenditions.add(rendition);
             }
+        }
+        final List<Resource> allRenditions = new ArrayList<>();
+        allRenditions.add(original);
+        allRenditions.addAll(otherRenditions);
+
+        final Validators validators = new Validators(assetResource, allRenditions);
+        if (validators.isNotModified(request)) {
+            setValidators(response, validators);
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        final Map<String, Lookup> dimensions = getDimensions(resolver, allRenditions);
 
-            final boolean isClassicUiCropReference = name.startsWith("cq5dam.web.") && !hasSeenWebRendition;
-            if (isClassicUiCropReference) {
-                hasSeenWebRendition = true;
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        if (dimensions.size() == allRenditions.size()) {
+            setValidators(response, validators);
+        } else {
+            response.setHeader("Cache-Control", "no-store");
+        }
+
+        final Map<String, ?> generatorConfig = prettyPrint
+                ? Collections.singletonMap(JsonGenerator.PRETTY_PRINTING, true)
+                : Collections.emptyMap();
+        try (JsonGenerator json = Json.createGeneratorFactory(generatorConfig).createGenerator(response.getWriter())) {
+            json.writeStartObject()
+                    .write("name", assetResource.getName())
+                    .write("url", getUrl(resolver::map, assetResource))
+                    .write("thumbnailUrl", getThummbnailUrl(resolver::map, assetResource))
+                    .write("mimeType", original.getValueMap().get("jcr:content/jcr:mimeType", ""));
+
+            final Dimension originalDimension = getDimension(dimensions, original);
+            if (originalDimension != null) {
+                json.write("width", originalDimension.width)
+                        .write("height", originalDimension.height);
             }
 
-            getDimensions(rendition).ifPresent(dimensions -> {
-                final JsonObjectBuilder renditionJson = Json.createObjectBuilder()
-                        .add("name", name)
-                        .add("url", getUrl(resolver::map, rendition))
-                        .add("width", dimensions.width)
-                        .add("height", dimensions.height);
+            json.writeStartArray("renditions");
+            boolean hasSeenWebRendition = false;
+            for (Resource rendition : otherRenditions) {
+                final String name = rendition.getName();
+                final boolean isClassicUiCropReference = name.startsWith("cq5dam.web.") && !hasSeenWebRendition;
                 if (isClassicUiCropReference) {
-                    renditionJson.add("isClassicUiCropReference", true);
+                    hasSeenWebRendition = true;
                 }
-                renditionsJson.add(renditionJson);
-            });
-        }
-
-        final JsonObject jsonObject = json
-                .add("renditions", renditionsJson)
-                .build();
 
-        final JsonWriter writer = Json
-                .createWriterFactory(Collections.singletonMap(JsonGenerator.PRETTY_PRINTING, true))
-                .createWriter(response.getWriter());
+                final Dimension dimension = getDimension(dimensions, rendition);
+                if (dimension != null) {
+                    json.writeStartObject()
+                            .write("name", name)
+                            .write("url", getUrl(resolver::map, rendition))
+                            .write("width", dimension.width)
+                            .write("height", dimension.height);
+                    if (isClassicUiCropReference) {
+                        json.write("isClassicUiCropReference", true);
+                    }
+                    json.writeEnd();
+                }
+            }
+            json.writeEnd()
+                    .writeEnd();
+        }
+    }
 
-        response.setContentType("application/json");
-        response.setCharacterEncoding("UTF-8");
-        writer.writeObject(jsonObject);
+    private void setValidators(@NotNull SlingHttpServletResponse response, @NotNull Validators validators) {
+        response.setHeader("ETag", validators.etag);
+        if (validators.lastModified > 0) {
+            response.setDateHeader("Last-Modified", validators.lastModified);
+        }
+        if (!cacheControl.isEmpty()) {
+            response.setHeader("Cache-Control", cacheControl);
+        }
     }
 
     private String getUrl(Function<String, String> mapper, Resource rendition) {
@@ -129,18 +260,193 @@ public class AssetReferenceInfoServlet extends SlingSafeMethodsServlet {
         return lastDot != -1 ? filename.substring(lastDot + 1) : null;
     }
 
-    private static Optional<Dimension> getDimensions(Resource rendition) throws IOException {
-        return ImageReaderHelper
-                .from(() -> ImageReaderHelper.getRenditionInputStream(rendition))
-                .withImageReader(ImageReaderHelper::getImageDimensions);
+    @Nullable
+    private static Dimension getDimension(@NotNull Map<String, Lookup> dimensions, @NotNull Resource rendition) {
+        return Optional.ofNullable(dimensions.get(rendition.getPath()))
+                .flatMap(Lookup::getDimension)
+                .orElse(null);
+    }
+
+    /**
+     * Collects the known dimensions in the request's thread and reads the others concurrently
+     * until the deadline has passed.
+     *
+     * @return the dimensions keyed by rendition path, or {@link Lookup#NOT_AN_IMAGE} for renditions that
+     * are not images, missing for renditions that could not be read in time or at all
+     */
+    @NotNull
+    private Map<String, Lookup> getDimensions(@NotNull ResourceResolver resolver, @NotNull List<Resource> renditions) {
+        final Map<String, Lookup> dimensions = new HashMap<>();
+        final List<Resource> unknown = new ArrayList<>();
+        for (Resource rendition : renditions) {
+            final Lookup known = dimensionCache.getKnownDimensions(rendition);
+            if (known.isKnown()) {
+                dimensions.put(rendition.getPath(), known);
+            } else {
+                unknown.add(rendition);
+            }
+        }
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        final Map<String, Future<Lookup>> futures = new LinkedHashMap<>();
+        for (Resource rendition : unknown) {
+            futures.put(rendition.getPath(), unknown.size() > 1
+                    ? submit(resolver, rendition, deadline)
+                    : read(rendition, deadline));
+        }
+        for (Map.Entry<String, Future<Lookup>> entry : futures.entrySet()) {
+            try {
+                final long remaining = Math.max(0, deadline - System.nanoTime());
+                final Lookup lookup = entry.getValue().get(remaining, TimeUnit.NANOSECONDS);
+                if (lookup.isKnown()) {
+                    dimensions.put(entry.getKey(), lookup);
+                }
+            } catch (TimeoutException | CancellationException e) {
+                // not cancelled if reading started, the dimensions are cached once they are read
+                LOG.debug("Omitting dimensions of '{}', which were not read in time", entry.getKey());
+            } catch (ExecutionException e) {
+                LOG.debug("Failed to read dimensions of '{}'", entry.getKey(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return dimensions;
+    }
+
+    @NotNull
+    private Future<Lookup> submit(@NotNull ResourceResolver resolver, @NotNull Resource rendition,
+                                               long deadline) {
+        final ExecutorService executor = executorService;
+        if (executor == null) {
+            return read(rendition, deadline);
+        }
+        final String path = rendition.getPath();
+        final ResourceResolver clone;
+        try {
+            // the clone is created in the caller's thread, because the resolver must not be used concurrently
+            clone = resolver.clone(null);
+        } catch (LoginException e) {
+            LOG.debug("Failed to clone resolver, reading dimensions of '{}' in the request's thread", path, e);
+            return read(rendition, deadline);
+        }
+        try {
+            return executor.submit(() -> {
+                try {
+                    if (isPast(deadline)) {
+                        // the request does not wait for the dimensions anymore
+                        return Lookup.UNKNOWN;
+                    }
+                    final Resource resource = clone.getResource(path);
+                    return resource == null ? Lookup.UNKNOWN : dimensionCache.readDimensions(resource);
+                } finally {
+                    clone.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            clone.close();
+            return read(rendition, deadline);
+        }
+    }
+
+    @NotNull
+    private Future<Lookup> read(@NotNull Resource rendition, long deadline) {
+        final FutureTask<Lookup> task = new FutureTask<>(() -> dimensionCache.readDimensions(rendition));
+        if (isPast(deadline)) {
+            task.cancel(false);
+        } else {
+            task.run();
+        }
+        return task;
+    }
+
+    private static boolean isPast(long deadline) {
+        return System.nanoTime() - deadline >= 0;
+    }
+
+    // missing properties count as the epoch rather than now, so that URLs and validators remain stable
+    private static long getLastModified(@NotNull Resource resource) {
+        final Calendar lastModified = resource.getValueMap().get("jcr:content/jcr:lastModified", Calendar.class);
+        return lastModified == null ? 0 : lastModified.getTimeInMillis();
     }
 
-    private static long getLastModified(@NotNull Resource rendition) {
-        final ValueMap properties = rendition.getValueMap();
-        final ZonedDateTime lastModified = Optional
-                .ofNullable(properties.get("jcr:content/jcr:lastModified", Calendar.class))
-                .map(created -> created.toInstant().atZone(created.getTimeZone().toZoneId()))
-                .orElse(ZonedDateTime.now());
-        return lastModified.toInstant().toEpochMilli();
+    /**
+     * Validators of the response, derived from the {@code jcr:lastModified} properties of the asset
+     * and its renditions, like the {@code ch_ck} parameters of the URLs.
+     */
+    private static class Validators {
+
+        private final String etag;
+
+        private final long lastModified;
+
+        private Validators(@NotNull Resource asset, @NotNull List<Resource> renditions) {
+            final StringBuilder state = new StringBuilder(asset.getPath());
+            long lastModified = getLastModified(asset);
+            state.append('@').append(lastModified);
+            for (Resource rendition : renditions) {
+                final long renditionLastModified = getLastModified(rendition);
+                state.append('/').append(rendition.getName()).append('@').append(renditionLastModified);
+                lastModified = Math.max(lastModified, renditionLastModified);
+            }
+            this.etag = "W/\"" + digest(state.toString()) + "\"";
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Evaluates {@code If-None-Match} and, only if it is absent, {@code If-Modified-Since}.
+         * Entity tags are compared weakly, i.e. a strong tag matches the weak tag of this response.
+         */
+        private boolean isNotModified(@NotNull SlingHttpServletRequest request) {
+            final String ifNoneMatch = request.getHeader("If-None-Match");
+            if (ifNoneMatch != null) {
+                for (String tag : ifNoneMatch.split(",")) {
+                    final String trimmed = tag.trim();
+                    if (trimmed.equals("*") || stripWeakness(trimmed).equals(stripWeakness(etag))) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (lastModified <= 0) {
+                return false;
+            }
+            try {
+                final long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+                // HTTP dates have a precision of seconds
+                return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+
+        private static String stripWeakness(String tag) {
+            return tag.startsWith("W/") ? tag.substring(2) : tag;
+        }
+
+        private static String digest(String value) {
+            try {
+                final byte[] hash = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+                final StringBuilder hex = new StringBuilder();
+                for (int i = 0; i < 16; i++) {
+                    hex.append(String.format("%02x", hash[i]));
+                }
+                return hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                return Integer.toHexString(value.hashCode());
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NotNull Runnable runnable) {
+            final Thread thread = new Thread(runnable, "distilledcode-rendition-probe-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
     }
 }
@@ -0,0 +1,216 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.ui;
+
+import net.distilledcode.aem.ui.touch.support.api.ui.ComponentHierarchy;
+import net.distilledcode.aem.ui.touch.support.api.ui.DialogUtil;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Memoizes the super-type chain of components and whether they render pages. Each component is
+ * resolved at most once, components sharing super types reuse the cached entries of the super types.
+ * <br>
+ * Entries are removed when a component in their super-type chain, its info providers or a missing
+ * super type changes. All entries are removed when templates change. Entries are shared by all
+ * users with the same search path, because components are usually readable by all users that
+ * author content.
+ */
+@Component(
+        service = {ComponentHierarchy.class, ResourceChangeListener.class},
+        property = {
+                // defaults, must be kept in sync with Config#resource_paths
+                ResourceChangeListener.PATHS + "=/apps",
+                ResourceChangeListener.PATHS + "=/libs",
+                ResourceChangeListener.PATHS + "=/conf"
+        }
+)
+@Designate(ocd = ComponentHierarchyCache.Config.class)
+public class ComponentHierarchyCache implements ComponentHierarchy, ResourceChangeListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ComponentHierarchyCache.class);
+
+    private static final String NN_INFO_PROVIDERS = "cq:infoProviders";
+
+    @ObjectClassDefinition(name = "Distilled Code ~ Component Hierarchy Cache")
+    @interface Config {
+        @AttributeDefinition(description = "Changes to resources below these paths may invalidate cached entries.")
+        String[] resource_paths() default {"/apps", "/libs", "/conf"};
+
+        @AttributeDefinition(description = "Regular expression matching the paths of changed resources that " +
+                "invalidate all entries, because templates may have changed.")
+        String template_path_pattern() default ".*/templates(/.*)?";
+    }
+
+    // entries keyed by search path and component path
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private volatile Pattern templatePathPattern;
+
+    @Activate
+    @Modified
+    public void activate(Config config) {
+        this.templatePathPattern = Pattern.compile(config.template_path_pattern());
+        invalidate();
+    }
+
+    @Deactivate
+    public void deactivate() {
+        invalidate();
+    }
+
+    @Override
+    public void onChange(@NotNull List<ResourceChange> changes) {
+        for (ResourceChange change : changes) {
+            final String path = change.getPath();
+            if (templatePathPattern.matcher(path).matches()) {
+                LOG.debug("Invalidating all entries due to change at '{}'", path);
+                invalidate();
+                return;
+            }
+            if (entries.values().removeIf(entry -> entry.dependsOn(path))) {
+                generation.incrementAndGet();
+                LOG.debug("Invalidated entries depending on '{}'", path);
+            }
+        }
+    }
+
+    @NotNull
+    @Override
+    public List<String> getSuperTypeChain(@NotNull Resource component) {
+        return getEntry(component).chain;
+    }
+
+    @Override
+    public boolean isPageRenderingComponent(@Nullable Resource component) {
+        return DialogUtil.isComponent(component) && getEntry(component).pageRendering;
+    }
+
+    @NotNull
+    private Entry getEntry(@NotNull Resource component) {
+        return getEntry(component, new HashSet<>());
+    }
+
+    @NotNull
+    private Entry getEntry(@NotNull Resource component, @NotNull Set<String> visited) {
+        final ResourceResolver resolver = component.getResourceResolver();
+        final String key = String.join(",", resolver.getSearchPath()) + ":" + component.getPath();
+        final Entry cached = entries.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        final long expectedGeneration = generation.get();
+        final Entry entry;
+        final String resourceSuperType = component.getResourceSuperType();
+        final Resource superType = resourceSuperType == null ? null : resolver.getResource(resourceSuperType);
+        if (superType == null || !visited.add(component.getPath())) {
+            final Set<String> missing = resourceSuperType == null
+                    ? Collections.emptySet()
+                    : getCandidatePaths(resolver, resourceSuperType);
+            entry = new Entry(component, null, missing);
+        } else {
+            entry = new Entry(component, getEntry(superType, visited), Collections.emptySet());
+        }
+
+        // don't cache entries that may have been computed before an invalidation
+        if (generation.get() == expectedGeneration) {
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    private static Set<String> getCandidatePaths(ResourceResolver resolver, String resourceType) {
+        final Set<String> paths = new HashSet<>();
+        if (resourceType.startsWith("/")) {
+            paths.add(resourceType);
+        } else {
+            for (String searchPath : resolver.getSearchPath()) {
+                paths.add(searchPath + resourceType);
+            }
+        }
+        return paths;
+    }
+
+    private void invalidate() {
+        generation.incrementAndGet();
+        entries.clear();
+    }
+
+    private static class Entry {
+
+        private final List<String> chain;
+
+        private final boolean pageRendering;
+
+        // paths of the components in the chain and of unresolvable super types
+        private final Set<String> dependencies;
+
+        private Entry(@NotNull Resource component, @Nullable Entry superTypeEntry, @NotNull Set<String> missing) {
+            final List<String> chain = new ArrayList<>();
+            chain.add(component.getPath());
+            final Templates templates = component.adaptTo(Templates.class);
+            boolean pageRendering = templates != null && !templates.isEmpty()
+                    || component.getChild(NN_INFO_PROVIDERS) != null;
+            final Set<String> dependencies = new HashSet<>(missing);
+            dependencies.add(component.getPath());
+            if (superTypeEntry != null) {
+                chain.addAll(superTypeEntry.chain);
+                pageRendering |= superTypeEntry.pageRendering;
+                dependencies.addAll(superTypeEntry.dependencies);
+            }
+            this.chain = Collections.unmodifiableList(chain);
+            this.pageRendering = pageRendering;
+            this.dependencies = Collections.unmodifiableSet(dependencies);
+        }
+
+        private boolean dependsOn(String path) {
+            for (String dependency : dependencies) {
+                if (dependency.equals(path)
+                        || dependency.startsWith(path + "/")
+                        || path.startsWith(dependency + "/" + NN_INFO_PROVIDERS)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
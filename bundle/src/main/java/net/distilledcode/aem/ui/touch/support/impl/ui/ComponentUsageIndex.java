@@ -0,0 +1,454 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.ui;
+
+import com.day.cq.wcm.api.Page;
+import com.day.cq.wcm.api.PageManager;
+import net.distilledcode.aem.ui.touch.support.api.ui.DialogUtil;
+import net.distilledcode.aem.ui.touch.support.api.ui.PathTrie;
+import net.distilledcode.aem.ui.touch.support.api.ui.consoles.ComponentUsage;
+import net.distilledcode.aem.ui.touch.support.impl.ServiceResolvers;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * Index mapping the resource types of components to a capped number of pages that use them. The
+ * index is built in the background when the service is activated: the components below the
+ * component paths are found with a query, and the pages using each of them are searched with one
+ * query per resource type. Until the index is built, {@link #getExamplePages(ResourceResolver, String)}
+ * returns {@code null} and callers search the pages themselves.
+ * <br>
+ * Afterwards the index is updated incrementally in the background. Changes within the content of a
+ * page re-scan the content of that page, which adds the page to the resource types it uses now and
+ * removes it from the ones it no longer uses. Added pages are scanned, removed pages are removed
+ * from their resource types. Only resource types whose list of pages was full and lost a page are
+ * searched again, to fill the list.
+ * <br>
+ * The index is built and updated with a service user. Users only see the example pages they are
+ * allowed to read, because the pages are resolved with their own resolver when the links are rendered.
+ */
+@Component(
+        service = {ComponentUsage.class, ResourceChangeListener.class},
+        property = {
+                // default, must be kept in sync with Config#resource_paths
+                ResourceChangeListener.PATHS + "=/content"
+        }
+)
+@Designate(ocd = ComponentUsageIndex.Config.class)
+public class ComponentUsageIndex implements ComponentUsage, ResourceChangeListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ComponentUsageIndex.class);
+
+    private static final String JCR_CONTENT = "/jcr:content";
+
+    // changes beyond this number are not tracked, instead the index is rebuilt
+    private static final int MAX_PENDING_CHANGES = 10000;
+
+    @ObjectClassDefinition(name = "Distilled Code ~ Component Usage Index")
+    @interface Config {
+        @AttributeDefinition(description = "Pages using components are searched below these paths.")
+        String[] resource_paths() default {"/content"};
+
+        @AttributeDefinition(description = "The components below these paths are indexed when the index is built.")
+        String[] component_paths() default {"/apps"};
+
+        @AttributeDefinition(description = "Maximum number of example pages per component.")
+        int max_examples() default 5;
+
+        @AttributeDefinition(description = "Maximum number of resources read per component when searching example pages.")
+        int max_scanned() default 1000;
+
+        @AttributeDefinition(description = "Load the example links of the converter console asynchronously.")
+        boolean async() default false;
+    }
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    // guarded by this, written by the executor only
+    private final Map<String, Set<String>> pagesByResourceType = new HashMap<>();
+
+    // guarded by this, the resource types listing a page
+    private final NavigableMap<String, Set<String>> resourceTypesByPage = new TreeMap<>();
+
+    // pages whose content changed
+    private final NavigableSet<String> changedPages = new ConcurrentSkipListSet<>();
+
+    // added and removed paths outside of the content of pages
+    private final NavigableSet<String> addedPaths = new ConcurrentSkipListSet<>();
+
+    private final NavigableSet<String> removedPaths = new ConcurrentSkipListSet<>();
+
+    // resource types that are not indexed yet, e.g. of components added after the index was built
+    private final NavigableSet<String> unknownResourceTypes = new ConcurrentSkipListSet<>();
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private volatile boolean rebuild;
+
+    private volatile boolean ready;
+
+    private volatile ExecutorService executor;
+
+    private String[] rootPaths;
+
+    private String[] componentPaths;
+
+    private int maxExamples;
+
+    private int maxScanned;
+
+    private boolean async;
+
+    @Activate
+    public synchronized void activate(Config config) {
+        this.rootPaths = config.resource_paths();
+        this.componentPaths = config.component_paths();
+        this.maxExamples = Math.max(0, config.max_examples());
+        this.maxScanned = Math.max(0, config.max_scanned());
+        this.async = config.async();
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "distilledcode-component-usage-index");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        rebuild = true;
+        schedule();
+    }
+
+    @Deactivate
+    public synchronized void deactivate() {
+        executor.shutdownNow();
+        executor = null;
+        ready = false;
+        pagesByResourceType.clear();
+        resourceTypesByPage.clear();
+    }
+
+    @Override
+    public void onChange(@NotNull List<ResourceChange> changes) {
+        for (ResourceChange change : changes) {
+            final String path = change.getPath();
+            final int contentIndex = path.indexOf(JCR_CONTENT);
+            if (contentIndex > 0 && (path.length() == contentIndex + JCR_CONTENT.length()
+                    || path.charAt(contentIndex + JCR_CONTENT.length()) == '/')) {
+                changedPages.add(path.substring(0, contentIndex));
+            } else if (change.getType() == ResourceChange.ChangeType.ADDED) {
+                addedPaths.add(path);
+            } else if (change.getType() == ResourceChange.ChangeType.REMOVED) {
+                removedPaths.add(path);
+            }
+            // other changes of pages and folders do not affect the resource types they use
+        }
+        if (changedPages.size() + addedPaths.size() + removedPaths.size() > MAX_PENDING_CHANGES) {
+            LOG.debug("Too many changes, rebuilding the component usage index");
+            rebuild = true;
+        }
+        schedule();
+    }
+
+    @Nullable
+    @Override
+    public List<String> getExamplePages(@NotNull ResourceResolver resolver, @NotNull String resourceType) {
+        if (!ready) {
+            return null;
+        }
+        synchronized (this) {
+            final Set<String> pages = pagesByResourceType.get(resourceType);
+            if (pages != null) {
+                return new ArrayList<>(pages);
+            }
+        }
+        // e.g. a component that was added after the index was built
+        unknownResourceTypes.add(resourceType);
+        schedule();
+        return Collections.emptyList();
+    }
+
+    @Override
+    public int getMaxExamples() {
+        return maxExamples;
+    }
+
+    @Override
+    public boolean isAsync() {
+        return async;
+    }
+
+    private void schedule() {
+        final ExecutorService executor = this.executor;
+        if (executor != null && scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(() -> {
+                    // changes from now on are applied by the next run
+                    scheduled.set(false);
+                    try (ResourceResolver resolver = ServiceResolvers.open(resolverFactory, ServiceResolvers.READER)) {
+                        if (rebuild) {
+                            build(resolver);
+                        } else {
+                            update(resolver);
+                        }
+                    } catch (LoginException | RuntimeException e) {
+                        LOG.error("Failed to update the component usage index", e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the index is being deactivated
+                scheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Builds the index, or rebuilds it if too many changes happened. The lists of a rebuilt index
+     * are replaced one resource type at a time, so that the index can still be used meanwhile.
+     */
+    private void build(@NotNull ResourceResolver resolver) {
+        final long start = System.currentTimeMillis();
+        rebuild = false;
+        changedPages.clear();
+        addedPaths.clear();
+        removedPaths.clear();
+        unknownResourceTypes.clear();
+        final Set<String> resourceTypes = new LinkedHashSet<>();
+        for (String componentPath : componentPaths) {
+            final String query = String.format("/jcr:root%s//element(*, cq:Component)", componentPath);
+            final Iterator<Resource> components = resolver.findResources(query, "xpath");
+            while (components.hasNext()) {
+                resourceTypes.add(getResourceType(components.next().getPath()));
+            }
+        }
+        for (String resourceType : resourceTypes) {
+            search(resolver, resourceType);
+        }
+        synchronized (this) {
+            // resource types of removed components, if the index is rebuilt
+            for (String resourceType : new ArrayList<>(pagesByResourceType.keySet())) {
+                if (!resourceTypes.contains(resourceType)) {
+                    pagesByResourceType.remove(resourceType).forEach(page -> unlink(resourceType, page));
+                }
+            }
+        }
+        ready = true;
+        LOG.debug("Indexed the usage of {} components in {}ms", resourceTypes.size(), System.currentTimeMillis() - start);
+    }
+
+    private void update(@NotNull ResourceResolver resolver) {
+        final Set<String> refill = new HashSet<>();
+
+        // removed pages and folders, descendants are removed along with them
+        final PathTrie removed = new PathTrie();
+        for (String path : drain(removedPaths)) {
+            if (!removed.hasAncestor(path) && removed.add(path)) {
+                synchronized (this) {
+                    final List<String> pages = new ArrayList<>(resourceTypesByPage.subMap(path + "/", path + "0").keySet());
+                    if (resourceTypesByPage.containsKey(path)) {
+                        pages.add(path);
+                    }
+                    pages.forEach(page -> refill.addAll(unlinkPage(page, Collections.emptySet())));
+                }
+            }
+        }
+
+        // added pages and folders, the content of all pages they contain is scanned
+        final PathTrie added = new PathTrie();
+        for (String path : drain(addedPaths)) {
+            final Resource resource = resolver.getResource(path);
+            if (!added.hasAncestor(path) && added.add(path) && resource != null) {
+                scanPages(resource, refill);
+            }
+        }
+
+        // pages whose content changed
+        for (String page : drain(changedPages)) {
+            if (added.contains(page) || added.hasAncestor(page)) {
+                // already scanned along with the added path
+                continue;
+            }
+            final Resource resource = resolver.getResource(page);
+            if (resource != null) {
+                scanPage(resource, refill);
+            } else {
+                synchronized (this) {
+                    refill.addAll(unlinkPage(page, Collections.emptySet()));
+                }
+            }
+        }
+
+        // resource types whose full list lost a page, and resource types that are not indexed yet
+        refill.addAll(drain(unknownResourceTypes));
+        for (String resourceType : refill) {
+            search(resolver, resourceType);
+        }
+    }
+
+    private void scanPages(@NotNull Resource resource, @NotNull Set<String> refill) {
+        if (isPage(resource)) {
+            scanPage(resource, refill);
+        }
+        for (Resource child : resource.getChildren()) {
+            if (!Objects.equals(child.getName(), "jcr:content")) {
+                scanPages(child, refill);
+            }
+        }
+    }
+
+    /**
+     * Links the page to the resource types used in its content and unlinks it from all others.
+     */
+    private void scanPage(@NotNull Resource page, @NotNull Set<String> refill) {
+        final Set<String> resourceTypes = new HashSet<>();
+        final Resource content = page.getChild("jcr:content");
+        if (content != null) {
+            Stream.concat(Stream.of(content), DialogUtil.streamDescendants(content))
+                    .map(resource -> resource.getValueMap().get("sling:resourceType", String.class))
+                    .filter(Objects::nonNull)
+                    .forEach(resourceTypes::add);
+        }
+        synchronized (this) {
+            refill.addAll(unlinkPage(page.getPath(), resourceTypes));
+            for (String resourceType : resourceTypes) {
+                final Set<String> pages = pagesByResourceType.get(resourceType);
+                if (pages != null && pages.size() < maxExamples && pages.add(page.getPath())) {
+                    resourceTypesByPage.computeIfAbsent(page.getPath(), key -> new HashSet<>()).add(resourceType);
+                }
+            }
+        }
+    }
+
+    /**
+     * Searches the pages using the resource type with a query and replaces its list of pages.
+     */
+    private void search(@NotNull ResourceResolver resolver, @NotNull String resourceType) {
+        final PageManager pageManager = resolver.adaptTo(PageManager.class);
+        final Set<String> pages = new LinkedHashSet<>();
+        if (pageManager != null) {
+            int scanned = 0;
+            for (String rootPath : rootPaths) {
+                final String query = String.format("/jcr:root%s//*[@sling:resourceType='%s']",
+                        rootPath, resourceType.replace("'", "''"));
+                final Iterator<Resource> resources = resolver.findResources(query, "xpath");
+                while (resources.hasNext() && pages.size() < maxExamples && scanned++ < maxScanned) {
+                    final Page page = pageManager.getContainingPage(resources.next());
+                    if (page != null) {
+                        pages.add(page.getPath());
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            final Set<String> previous = pagesByResourceType.put(resourceType, pages);
+            if (previous != null) {
+                for (String page : previous) {
+                    unlink(resourceType, page);
+                }
+            }
+            for (String page : pages) {
+                resourceTypesByPage.computeIfAbsent(page, key -> new HashSet<>()).add(resourceType);
+            }
+        }
+    }
+
+    /**
+     * Unlinks the page from the resource types listing it, except the given ones. Must be called
+     * while holding the lock.
+     *
+     * @return the resource types whose list of pages was full
+     */
+    private Set<String> unlinkPage(@NotNull String page, @NotNull Set<String> retained) {
+        final Set<String> resourceTypes = resourceTypesByPage.get(page);
+        if (resourceTypes == null) {
+            return Collections.emptySet();
+        }
+        final Set<String> full = new HashSet<>();
+        for (String resourceType : new ArrayList<>(resourceTypes)) {
+            if (!retained.contains(resourceType)) {
+                final Set<String> pages = pagesByResourceType.get(resourceType);
+                if (pages != null && pages.size() >= maxExamples) {
+                    full.add(resourceType);
+                }
+                if (pages != null) {
+                    pages.remove(page);
+                }
+                unlink(resourceType, page);
+            }
+        }
+        return full;
+    }
+
+    // must be called while holding the lock
+    private void unlink(@NotNull String resourceType, @NotNull String page) {
+        final Set<String> resourceTypes = resourceTypesByPage.get(page);
+        if (resourceTypes != null && resourceTypes.remove(resourceType) && resourceTypes.isEmpty()) {
+            resourceTypesByPage.remove(page);
+        }
+    }
+
+    private static boolean isPage(@NotNull Resource resource) {
+        return Objects.equals(resource.getValueMap().get("jcr:primaryType", String.class), "cq:Page");
+    }
+
+    /**
+     * @return the resource type of the component, i.e. its path relative to the search path, e.g. {@code /apps}
+     */
+    @NotNull
+    private static String getResourceType(@NotNull String componentPath) {
+        return componentPath.substring(componentPath.indexOf('/', 1) + 1);
+    }
+
+    private static List<String> drain(NavigableSet<String> paths) {
+        final List<String> drained = new ArrayList<>(paths);
+        paths.removeAll(drained);
+        return drained;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.ui;
+
+import net.distilledcode.aem.ui.touch.support.api.ui.Link;
+import net.distilledcode.aem.ui.touch.support.api.ui.consoles.ConsoleItem;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
+import org.jetbrains.annotations.NotNull;
+import org.osgi.service.component.annotations.Component;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonWriter;
+import javax.servlet.Servlet;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Renders the example links of the {@link ConsoleItem} addressed by the suffix, which are loaded
+ * asynchronously by the converter console if the component usage index is configured accordingly.
+ */
+@Component(service = Servlet.class)
+@SlingServletResourceTypes(
+        resourceTypes = "distilledcode/aem-touch-ui-support/ui-components/converter/console/component-usage",
+        extensions = "json"
+)
+public class ComponentUsageServlet extends SlingSafeMethodsServlet {
+    @Override
+    protected void doGet(@NotNull SlingHttpServletRequest request, @NotNull SlingHttpServletResponse response) throws IOException {
+        final Resource resource = request.getRequestPathInfo().getSuffixResource();
+        final ConsoleItem item = resource == null ? null : resource.adaptTo(ConsoleItem.class);
+        if (item == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Resource is not a console item");
+            return;
+        }
+
+        final JsonArrayBuilder links = Json.createArrayBuilder();
+        for (Link link : item.loadExampleLinks()) {
+            links.add(Json.createObjectBuilder()
+                    .add("title", link.getTitle())
+                    .add("href", link.getHref()));
+        }
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        try (JsonWriter writer = Json.createWriter(response.getWriter())) {
+            writer.writeArray(links.build());
+        }
+    }
+}
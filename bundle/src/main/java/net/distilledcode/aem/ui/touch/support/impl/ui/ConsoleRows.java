@@ -0,0 +1,166 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.ui;
+
+import net.distilledcode.aem.ui.touch.support.api.ui.ComponentHierarchy;
+import net.distilledcode.aem.ui.touch.support.api.ui.DialogUtil;
+import net.distilledcode.aem.ui.touch.support.api.ui.consoles.ConsoleRow;
+import net.distilledcode.aem.ui.touch.support.api.ui.consoles.ConsoleRowProvider;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static net.distilledcode.aem.ui.touch.support.api.ui.DialogUtil.isClassicComponentDialog;
+
+/**
+ * Computes the data of the rows rendered by the console, i.e. of console items, and keeps it for
+ * the lifetime of a {@code ResourceResolver}, which usually is the current request. Rows can be
+ * computed for a whole page of items at once via {@link #precompute(ResourceResolver, Iterable, ConvertibleResourceIndex, String[])},
+ * in which case the existence of the touch UI dialogs is answered by the {@link ConvertibleResourceIndex}
+ * rather than by one lookup per item. The index is updated asynchronously, therefore touch UI
+ * dialogs it does not know are still looked up, e.g. the ones converted just now.
+ */
+@Component(service = {ConsoleRows.class, ConsoleRowProvider.class})
+public class ConsoleRows implements ConsoleRowProvider {
+
+    private static final String PROPERTY_KEY = ConsoleRows.class.getName();
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private volatile ComponentHierarchy componentHierarchy;
+
+    /**
+     * Computes the rows of the given resources that have not been computed yet.
+     *
+     * @param resolver The resolver the rows are rendered with.
+     * @param resources The resources rendered as console items.
+     * @param index The index the resources were found with.
+     * @param searchRoots The search roots the resources were found below.
+     * @param exampleLinksSrc The URL the example links are loaded from, followed by the path of a resource,
+     *                        or {@code null} if they cannot be loaded asynchronously.
+     */
+    public void precompute(@NotNull ResourceResolver resolver, @NotNull Iterable<Resource> resources,
+                           @NotNull ConvertibleResourceIndex index, @NotNull String[] searchRoots,
+                           @Nullable String exampleLinksSrc) {
+        final Map<String, Row> rows = rows(resolver);
+        final List<Resource> pending = new ArrayList<>();
+        resources.forEach(resource -> {
+            if (!rows.containsKey(resource.getPath())) {
+                pending.add(resource);
+            }
+        });
+
+        final List<String> touchPaths = new ArrayList<>(pending.size());
+        for (Resource resource : pending) {
+            touchPaths.add(DialogUtil.getTouchUiPath(resource));
+        }
+        final Set<String> existingTouchPaths = index.getExistingTouchUiPaths(resolver, searchRoots, touchPaths);
+        for (int i = 0; i < pending.size(); i++) {
+            final String touchPath = touchPaths.get(i);
+            final Resource resource = pending.get(i);
+            final boolean converted = existingTouchPaths.contains(touchPath) || resolver.getResource(touchPath) != null;
+            final String exampleLinksUrl = exampleLinksSrc == null ? null : exampleLinksSrc + resource.getPath();
+            rows.put(resource.getPath(), new Row(resource, touchPath, converted, exampleLinksUrl, componentHierarchy));
+        }
+    }
+
+    @Override
+    @NotNull
+    public ConsoleRow getRow(@NotNull Resource resource) {
+        final ResourceResolver resolver = resource.getResourceResolver();
+        return rows(resolver).computeIfAbsent(resource.getPath(), path -> {
+            final String touchPath = DialogUtil.getTouchUiPath(resource);
+            return new Row(resource, touchPath, resolver.getResource(touchPath) != null, null, componentHierarchy);
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    @NotNull
+    private static Map<String, Row> rows(@NotNull ResourceResolver resolver) {
+        return (Map<String, Row>) resolver.getPropertyMap()
+                .computeIfAbsent(PROPERTY_KEY, key -> new ConcurrentHashMap<String, Row>());
+    }
+
+    private static class Row implements ConsoleRow {
+        private final String type;
+
+        private final String touchPath;
+
+        private final boolean converted;
+
+        private final String componentPath;
+
+        private final String exampleLinksUrl;
+
+        private Row(@NotNull Resource resource, @NotNull String touchPath, boolean converted,
+                    @Nullable String exampleLinksUrl, @Nullable ComponentHierarchy componentHierarchy) {
+            this.touchPath = touchPath;
+            this.converted = converted;
+            this.exampleLinksUrl = exampleLinksUrl;
+            if (isClassicComponentDialog(resource)) {
+                final Resource component = resource.getParent();
+                final boolean isPageRenderingComponent = componentHierarchy != null
+                        ? componentHierarchy.isPageRenderingComponent(component)
+                        : DialogUtil.isPageRenderingComponent(component);
+                this.type = isPageRenderingComponent ? "Classic Page Dialog" : "Classic Dialog";
+                this.componentPath = ResourceUtil.getParent(resource.getPath());
+            } else {
+                this.type = "Include";
+                this.componentPath = null;
+            }
+        }
+
+        @Override
+        @NotNull
+        public String getType() {
+            return type;
+        }
+
+        @Override
+        @NotNull
+        public String getTouchPath() {
+            return touchPath;
+        }
+
+        @Override
+        public boolean isConverted() {
+            return converted;
+        }
+
+        @Override
+        @Nullable
+        public String getComponentPath() {
+            return componentPath;
+        }
+
+        @Override
+        @Nullable
+        public String getExampleLinksUrl() {
+            return exampleLinksUrl;
+        }
+    }
+}
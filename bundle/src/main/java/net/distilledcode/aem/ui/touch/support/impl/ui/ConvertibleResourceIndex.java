@@ -0,0 +1,514 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.ui;
+
+import net.distilledcode.aem.ui.touch.support.api.ui.DialogUtil;
+import net.distilledcode.aem.ui.touch.support.api.ui.PathTrie;
+import net.distilledcode.aem.ui.touch.support.impl.ServiceResolvers;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.apache.commons.lang3.StringUtils.startsWithAny;
+
+/**
+ * In-memory index of the resources below the search roots of a conversion configuration that are
+ * relevant for the dialog conversion, i.e. classic dialogs, {@code cqinclude} widgets and widgets
+ * in general, as well as the touch UI resources they are converted to. Each search root is
+ * traversed only once, in the background, when it is first queried. Until then queries of the
+ * search root traverse it with the resolver of the querying user. Afterwards the index is refreshed
+ * incrementally in the background: the subtrees of changed resources are marked as stale and are
+ * re-traversed. Each change of the index publishes an immutable snapshot, which is shared by all
+ * queries until the next change.
+ * <br>
+ * There is one index per search root, shared by all users. It is built with a service user and
+ * only holds paths, which are resolved with the resolver of the querying user, hence users only
+ * get the resources they are allowed to read.
+ */
+@Component(
+        service = {ConvertibleResourceIndex.class, ResourceChangeListener.class},
+        property = {
+                // default, must be kept in sync with Config#resource_paths
+                ResourceChangeListener.PATHS + "=/apps"
+        }
+)
+@Designate(ocd = ConvertibleResourceIndex.Config.class)
+public class ConvertibleResourceIndex implements ResourceChangeListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConvertibleResourceIndex.class);
+
+    @ObjectClassDefinition(name = "Distilled Code ~ Convertible Resource Index")
+    @interface Config {
+        @AttributeDefinition(description = "Changes below these paths are applied to the index. Should cover " +
+                "the scope of all conversion configurations.")
+        String[] resource_paths() default {"/apps"};
+    }
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    private final Map<String, RootIndex> indexes = new ConcurrentHashMap<>();
+
+    // convertible paths in display order, keyed by search roots, valid as long as the snapshots are current
+    private final Map<List<String>, Ordered> orderedPaths = new ConcurrentHashMap<>();
+
+    private volatile ExecutorService executor;
+
+    @Activate
+    public synchronized void activate() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "distilledcode-convertible-resource-index");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    @Deactivate
+    public synchronized void deactivate() {
+        executor.shutdownNow();
+        executor = null;
+        indexes.clear();
+        orderedPaths.clear();
+    }
+
+    @Override
+    public void onChange(@NotNull List<ResourceChange> changes) {
+        for (ResourceChange change : changes) {
+            final String path = change.getPath();
+            for (RootIndex index : indexes.values()) {
+                index.markStale(path);
+            }
+        }
+    }
+
+    /**
+     * Finds the resources that need to be converted, i.e. classic dialogs and the resources referenced
+     * by {@code cqinclude} widgets that contain widgets themselves. Resources that are descendants of
+     * other convertible resources are omitted, because they are converted implicitly.
+     *
+     * @param resolver The resolver of the current user.
+     * @param searchRoots The paths to search below.
+     * @return the convertible resources, resources referenced by includes first
+     */
+    @NotNull
+    public Stream<Resource> getConvertibleResources(@NotNull ResourceResolver resolver, @NotNull String[] searchRoots) {
+        return getConvertiblePaths(snapshots(resolver, searchRoots), searchRoots).stream()
+                .map(resolver::getResource)
+                .filter(Objects::nonNull);
+    }
+
+    /**
+     * Returns a page of the convertible resources in display order, i.e. classic component dialogs
+     * first, then all other resources, each ordered by path. The order is determined from the index,
+     * so only the resources up to the end of the requested page are resolved. Resources the user
+     * cannot read are skipped before the page is cut.
+     *
+     * @param resolver The resolver of the current user.
+     * @param searchRoots The paths to search below.
+     * @param offset The number of resources to skip.
+     * @param limit The maximum number of resources to return.
+     * @return the convertible resources of the requested page
+     * @see #getConvertibleResources(ResourceResolver, String[])
+     */
+    @NotNull
+    public List<Resource> getConvertibleResources(@NotNull ResourceResolver resolver, @NotNull String[] searchRoots,
+                                                  long offset, long limit) {
+        final List<Snapshot> snapshots = snapshots(resolver, searchRoots);
+        final List<String> key = Arrays.asList(searchRoots);
+        Ordered ordered = orderedPaths.get(key);
+        if (ordered == null || !ordered.isCurrent(snapshots)) {
+            final Set<String> componentDialogs = new HashSet<>();
+            snapshots.forEach(snapshot -> componentDialogs.addAll(snapshot.componentDialogs));
+            final Comparator<String> displayOrder = Comparator
+                    .comparing((String path) -> !componentDialogs.contains(path))
+                    .thenComparing(Comparator.naturalOrder());
+            final List<String> paths = getConvertiblePaths(snapshots, searchRoots);
+            paths.sort(displayOrder);
+            ordered = new Ordered(snapshots, Collections.unmodifiableList(paths));
+            orderedPaths.put(key, ordered);
+        }
+        return ordered.paths.stream()
+                .map(resolver::getResource)
+                .filter(Objects::nonNull)
+                .skip(offset)
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Determines which of the given touch UI paths exist, i.e. which resources have been converted.
+     * Touch UI dialogs and includes below the search roots are answered from the index, all other
+     * paths are looked up with the given resolver.
+     *
+     * @param resolver The resolver of the current user.
+     * @param searchRoots The paths to search below.
+     * @param touchPaths The touch UI paths of convertible resources, see {@link DialogUtil#getTouchUiPath(Resource)}.
+     * @return the existing touch UI paths
+     */
+    @NotNull
+    public Set<String> getExistingTouchUiPaths(@NotNull ResourceResolver resolver, @NotNull String[] searchRoots,
+                                               @NotNull Collection<String> touchPaths) {
+        final List<Snapshot> snapshots = snapshots(resolver, searchRoots);
+        final Set<String> existing = new HashSet<>();
+        for (String touchPath : touchPaths) {
+            final boolean indexed = isTouchUiName(ResourceUtil.getName(touchPath))
+                    && Arrays.stream(searchRoots).anyMatch(root -> isAncestorOf(root, touchPath));
+            if (indexed
+                    ? snapshots.stream().anyMatch(snapshot -> snapshot.touchPaths.contains(touchPath))
+                    : resolver.getResource(touchPath) != null) {
+                existing.add(touchPath);
+            }
+        }
+        return existing;
+    }
+
+    private List<Snapshot> snapshots(@NotNull ResourceResolver resolver, @NotNull String[] searchRoots) {
+        final List<Snapshot> snapshots = new ArrayList<>(searchRoots.length);
+        for (String searchRoot : searchRoots) {
+            final RootIndex index = indexes.computeIfAbsent(searchRoot, RootIndex::new);
+            final Snapshot snapshot = index.snapshot();
+            if (snapshot != null) {
+                snapshots.add(snapshot);
+            } else {
+                // the search root is not indexed yet, it is traversed with the resolver of the user instead
+                final RootIndex scanned = new RootIndex(searchRoot);
+                scanned.build(resolver);
+                snapshots.add(scanned.publish());
+            }
+        }
+        return snapshots;
+    }
+
+    private static List<String> getConvertiblePaths(List<Snapshot> snapshots, String[] searchRoots) {
+        // find all resources referenced by cqinclude path that contain widgets
+        final Stream<String> includes = snapshots.stream()
+                .flatMap(snapshot -> snapshot.includes.stream())
+                .filter(path -> startsWithAny(path, searchRoots))
+                .distinct()
+                .filter(path -> snapshots.stream().anyMatch(snapshot -> snapshot.hasWidgetBelow(path)));
+
+        final Stream<String> dialogs = snapshots.stream()
+                .flatMap(snapshot -> snapshot.dialogs.stream())
+                .filter(path -> !path.endsWith("/design_dialog"))
+                .filter(path -> !path.endsWith("/cq:dialog"));
+
+        // join includes and dialogs
+        final Set<String> paths = new LinkedHashSet<>();
+        includes.forEach(paths::add);
+        dialogs.forEach(paths::add);
+
+        // filter out descendants of other elements that will be converted (descendants are converted implicitly)
+        final PathTrie trie = new PathTrie();
+        paths.forEach(trie::add);
+        return paths.stream()
+                .filter(path -> !trie.hasAncestor(path))
+                .collect(Collectors.toList());
+    }
+
+    private static boolean isTouchUiName(String name) {
+        return Objects.equals(name, "cq:dialog") || name.startsWith("touch-ui-include-");
+    }
+
+    private static boolean isAncestorOf(String ancestor, String path) {
+        return ancestor.length() < path.length()
+                && path.startsWith(ancestor) && path.charAt(ancestor.length()) == '/';
+    }
+
+    private static class Ordered {
+
+        private final List<Snapshot> snapshots;
+
+        private final List<String> paths;
+
+        private Ordered(List<Snapshot> snapshots, List<String> paths) {
+            this.snapshots = snapshots;
+            this.paths = paths;
+        }
+
+        private boolean isCurrent(List<Snapshot> current) {
+            if (current.size() != snapshots.size()) {
+                return false;
+            }
+            for (int i = 0; i < current.size(); i++) {
+                if (current.get(i) != snapshots.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The index of a single search root. All modifications are synchronized on the instance,
+     * the published snapshot can be read without synchronization.
+     */
+    private class RootIndex {
+
+        private final String root;
+
+        // paths of cq:Dialog resources
+        private final NavigableSet<String> dialogs = new TreeSet<>();
+
+        // paths of classic component dialogs, a subset of dialogs, used as sort key
+        private final NavigableSet<String> componentDialogs = new TreeSet<>();
+
+        // paths of cqinclude widgets mapped to the path they include
+        private final NavigableMap<String, String> includes = new TreeMap<>();
+
+        // paths of resources with an xtype or of type cq:Widget
+        private final NavigableSet<String> widgets = new TreeSet<>();
+
+        // paths of touch UI dialogs and includes, see DialogUtil#getTouchUiName
+        private final NavigableSet<String> touchPaths = new TreeSet<>();
+
+        // paths whose subtrees need to be re-traversed, also collected while the index is built
+        private final NavigableSet<String> stale = new ConcurrentSkipListSet<>();
+
+        private final AtomicBoolean buildScheduled = new AtomicBoolean();
+
+        private final AtomicBoolean refreshScheduled = new AtomicBoolean();
+
+        // null until the index is built
+        private volatile Snapshot snapshot;
+
+        private RootIndex(String root) {
+            this.root = root;
+        }
+
+        private void markStale(String path) {
+            if (Objects.equals(path, root) || isAncestorOf(path, root)) {
+                // the whole search root is re-traversed
+                stale.add(root);
+            } else if (isAncestorOf(root, path)) {
+                stale.add(path);
+            }
+        }
+
+        /**
+         * Returns the current snapshot and schedules stale paths to be refreshed, or schedules the
+         * index to be built if it is not built yet. An index that failed to build is not scheduled
+         * again, its search root is traversed by the caller instead.
+         *
+         * @return the current snapshot or {@code null} if the index is not built yet
+         */
+        @Nullable
+        private Snapshot snapshot() {
+            final Snapshot current = snapshot;
+            if (current == null) {
+                schedule(buildScheduled, resolver -> {
+                    synchronized (this) {
+                        build(resolver);
+                        snapshot = publish();
+                    }
+                });
+            } else if (!stale.isEmpty()) {
+                schedule(refreshScheduled, resolver -> {
+                    // changes from now on are applied by the next refresh
+                    refreshScheduled.set(false);
+                    synchronized (this) {
+                        refresh(resolver);
+                        snapshot = publish();
+                    }
+                });
+            }
+            return current;
+        }
+
+        private void schedule(AtomicBoolean scheduled, Consumer<ResourceResolver> task) {
+            final ExecutorService executor = ConvertibleResourceIndex.this.executor;
+            if (executor != null && scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(() -> {
+                        try (ResourceResolver resolver = ServiceResolvers.open(resolverFactory, ServiceResolvers.READER)) {
+                            task.accept(resolver);
+                        } catch (LoginException | RuntimeException e) {
+                            LOG.error("Failed to index '{}'", root, e);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // the index is being deactivated
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        private Snapshot publish() {
+            return new Snapshot(
+                    Collections.unmodifiableList(new ArrayList<>(dialogs)),
+                    Collections.unmodifiableSet(new HashSet<>(componentDialogs)),
+                    Collections.unmodifiableList(new ArrayList<>(includes.values())),
+                    Collections.unmodifiableNavigableSet(new TreeSet<>(widgets)),
+                    Collections.unmodifiableSet(new HashSet<>(touchPaths)));
+        }
+
+        private void build(ResourceResolver resolver) {
+            final long start = System.currentTimeMillis();
+            dialogs.clear();
+            componentDialogs.clear();
+            includes.clear();
+            widgets.clear();
+            touchPaths.clear();
+            // changes from now on are applied by the next refresh
+            stale.clear();
+            final Resource rootResource = resolver.getResource(root);
+            if (rootResource != null) {
+                DialogUtil.streamDescendants(rootResource).forEach(this::index);
+            }
+            LOG.debug("Indexed '{}' in {}ms: {} dialogs, {} includes, {} widgets", root,
+                    System.currentTimeMillis() - start, dialogs.size(), includes.size(), widgets.size());
+        }
+
+        private void refresh(ResourceResolver resolver) {
+            final List<String> paths = new ArrayList<>(stale);
+            stale.removeAll(paths);
+            final PathTrie refreshed = new PathTrie();
+            for (String path : paths) {
+                // descendants of a stale path are re-traversed along with it
+                if (refreshed.hasAncestor(path)) {
+                    continue;
+                }
+                refreshed.add(path);
+                remove(path);
+                final Resource resource = resolver.getResource(path);
+                if (resource != null) {
+                    if (Objects.equals(path, root)) {
+                        // the search root itself is not indexed
+                        DialogUtil.streamDescendants(resource).forEach(this::index);
+                    } else {
+                        traverse(resource);
+                    }
+                }
+            }
+            LOG.debug("Refreshed {} stale paths below '{}'", paths.size(), root);
+        }
+
+        private void remove(String path) {
+            // all descendants of path sort between "path/" and "path0", because '0' follows '/'
+            dialogs.remove(path);
+            dialogs.subSet(path + "/", path + "0").clear();
+            componentDialogs.remove(path);
+            componentDialogs.subSet(path + "/", path + "0").clear();
+            includes.remove(path);
+            includes.subMap(path + "/", path + "0").clear();
+            widgets.remove(path);
+            widgets.subSet(path + "/", path + "0").clear();
+            touchPaths.remove(path);
+            touchPaths.subSet(path + "/", path + "0").clear();
+        }
+
+        /**
+         * Indexes the given resource and its descendants in a single pass.
+         */
+        private void traverse(Resource resource) {
+            Stream.concat(Stream.of(resource), DialogUtil.streamDescendants(resource)).forEach(this::index);
+        }
+
+        private void index(Resource resource) {
+            final ValueMap properties = resource.getValueMap();
+            final String primaryType = properties.get("jcr:primaryType", String.class);
+            final String xtype = properties.get("xtype", String.class);
+            if (Objects.equals(primaryType, "cq:Dialog")) {
+                dialogs.add(resource.getPath());
+                if (DialogUtil.isClassicComponentDialog(resource)) {
+                    componentDialogs.add(resource.getPath());
+                }
+            }
+            if (Objects.equals(xtype, "cqinclude")) {
+                final String includePath = properties.get("path", String.class);
+                if (includePath != null) {
+                    includes.put(resource.getPath(), StringUtils.removeEnd(includePath, ".infinity.json"));
+                }
+            }
+            if (xtype != null || Objects.equals(primaryType, "cq:Widget")) {
+                widgets.add(resource.getPath());
+            }
+            if (isTouchUiName(resource.getName())) {
+                touchPaths.add(resource.getPath());
+            }
+        }
+    }
+
+    private static class Snapshot {
+
+        private final List<String> dialogs;
+
+        private final Set<String> componentDialogs;
+
+        private final List<String> includes;
+
+        private final NavigableSet<String> widgets;
+
+        private final Set<String> touchPaths;
+
+        private Snapshot(List<String> dialogs, Set<String> componentDialogs, List<String> includes,
+                         NavigableSet<String> widgets, Set<String> touchPaths) {
+            this.dialogs = dialogs;
+            this.componentDialogs = componentDialogs;
+            this.includes = includes;
+            this.widgets = widgets;
+            this.touchPaths = touchPaths;
+        }
+
+        private boolean hasWidgetBelow(String path) {
+            final String candidate = widgets.ceiling(path + "/");
+            return candidate != null && candidate.startsWith(path + "/");
+        }
+    }
+}
@@ -15,38 +15,114 @@
  */
 package net.distilledcode.aem.ui.touch.support.impl.ui;
 
+import net.distilledcode.aem.ui.touch.support.api.ui.PathTrie;
+import net.distilledcode.aem.ui.touch.support.impl.ServiceResolvers;
 import org.apache.sling.api.adapter.AdapterFactory;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.api.resource.ResourceUtil;
 import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import static java.util.Collections.unmodifiableMap;
 import static java.util.Collections.unmodifiableSet;
 
+/**
+ * Adapts component resources to the {@link Templates} that render them. The mapping from resource
+ * types to templates is computed with a single query and shared by all resolvers with the same
+ * search path as an immutable snapshot. Snapshots are discarded when templates change and are
+ * lazily rebuilt on the next lookup.
+ * <br>
+ * Snapshots are built with a service user, so that they do not depend on the permissions of the
+ * user whose lookup happens to build them. They only hold paths of templates, which users need
+ * to resolve with their own resolver in order to read them.
+ */
 @Component(
-        service = AdapterFactory.class,
+        service = {AdapterFactory.class, ResourceChangeListener.class},
         property = {
                 AdapterFactory.ADAPTABLE_CLASSES + "=org.apache.sling.api.resource.Resource",
                 AdapterFactory.ADAPTABLE_CLASSES + "=org.apache.sling.api.resource.ResourceResolver",
                 AdapterFactory.ADAPTER_CLASSES + "=net.distilledcode.aem.ui.touch.support.impl.ui.Templates",
-                AdapterFactory.ADAPTER_CLASSES + "=net.distilledcode.aem.ui.touch.support.impl.ui.TemplateInfoAdapterFactory"
+                AdapterFactory.ADAPTER_CLASSES + "=net.distilledcode.aem.ui.touch.support.impl.ui.TemplateInfoAdapterFactory",
+                // defaults, must be kept in sync with Config#resource_paths
+                ResourceChangeListener.PATHS + "=/apps",
+                ResourceChangeListener.PATHS + "=/libs",
+                ResourceChangeListener.PATHS + "=/conf"
         }
 )
-public class TemplateInfoAdapterFactory implements AdapterFactory {
+@Designate(ocd = TemplateInfoAdapterFactory.Config.class)
+public class TemplateInfoAdapterFactory implements AdapterFactory, ResourceChangeListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TemplateInfoAdapterFactory.class);
+
+    @ObjectClassDefinition(name = "Distilled Code ~ Template Info Adapter Factory")
+    @interface Config {
+        @AttributeDefinition(description = "Changes to resources below these paths may invalidate the template index.")
+        String[] resource_paths() default {"/apps", "/libs", "/conf"};
+
+        @AttributeDefinition(description = "Regular expression matching the paths of changed resources that " +
+                "invalidate the template index. Changes to indexed templates always invalidate the index.")
+        String template_path_pattern() default ".*/templates(/.*)?";
+    }
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    // snapshots keyed by search path
+    private final Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private volatile Pattern templatePathPattern;
 
-    private final Map<ResourceResolver, Map<String, Set<String>>> cache = new WeakHashMap<>();
+    @Activate
+    @Modified
+    public void activate(Config config) {
+        this.templatePathPattern = Pattern.compile(config.template_path_pattern());
+        invalidate();
+    }
+
+    @Deactivate
+    public void deactivate() {
+        invalidate();
+    }
+
+    @Override
+    public void onChange(@NotNull List<ResourceChange> changes) {
+        for (ResourceChange change : changes) {
+            if (affectsTemplates(change.getPath())) {
+                LOG.debug("Invalidating template index due to change at '{}'", change.getPath());
+                invalidate();
+                return;
+            }
+        }
+    }
 
     @SuppressWarnings("unchecked")
     @Override
@@ -61,14 +137,51 @@ public class TemplateInfoAdapterFactory implements AdapterFactory {
     @NotNull
     private Collection<? extends String> getTemplates(@NotNull Resource resource) {
         final ResourceResolver resolver = resource.getResourceResolver();
-        final Map<String, Set<String>> resourceTypeToTemplates = cache.computeIfAbsent(resolver, TemplateInfoAdapterFactory::createTemplateMap);
+        final Snapshot snapshot = getSnapshot(resolver);
 
         final String path = resource.getPath();
         final String resourceType = toResourceType(resolver.getSearchPath(), path);
-        return resourceTypeToTemplates.getOrDefault(resourceType, Collections.emptySet());
+        return snapshot.resourceTypeToTemplates.getOrDefault(resourceType, Collections.emptySet());
+    }
+
+    @NotNull
+    private Snapshot getSnapshot(@NotNull ResourceResolver resolver) {
+        final String key = String.join(",", resolver.getSearchPath());
+        Snapshot snapshot = snapshots.get(key);
+        if (snapshot == null) {
+            final long expectedGeneration = generation.get();
+            try (ResourceResolver serviceResolver = ServiceResolvers.open(resolverFactory, ServiceResolvers.READER)) {
+                snapshot = new Snapshot(createTemplateMap(serviceResolver, resolver.getSearchPath()));
+            } catch (LoginException e) {
+                LOG.error("Failed to index templates, the service user is not available", e);
+                return new Snapshot(Collections.emptyMap());
+            }
+            // don't publish a snapshot that may have been built before an invalidation
+            if (generation.get() == expectedGeneration) {
+                snapshots.put(key, snapshot);
+            }
+        }
+        return snapshot;
+    }
+
+    private boolean affectsTemplates(String path) {
+        if (templatePathPattern.matcher(path).matches()) {
+            return true;
+        }
+        for (Snapshot snapshot : snapshots.values()) {
+            if (snapshot.templatePaths.contains(path) || snapshot.templatePaths.hasAncestor(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void invalidate() {
+        generation.incrementAndGet();
+        snapshots.clear();
     }
 
-    private static Map<String, Set<String>> createTemplateMap(ResourceResolver resolver) {
+    private static Map<String, Set<String>> createTemplateMap(ResourceResolver resolver, String[] searchPath) {
 
         final Iterable<Resource> templateResources = () -> resolver.findResources(
                 "/jcr:root//element(*, cq:Template)/jcr:content", "xpath"
@@ -77,8 +190,7 @@ public class TemplateInfoAdapterFactory implements AdapterFactory {
         final Map<String, Set<String>> templateMap = new HashMap<>();
         for (Resource template : templateResources) {
             final ValueMap properties = template.getValueMap();
-            final String resourceType = toResourceType(
-                    resolver.getSearchPath(), properties.get("sling:resourceType", String.class));
+            final String resourceType = toResourceType(searchPath, properties.get("sling:resourceType", String.class));
             final String path = ResourceUtil.getParent(template.getPath());
             if (resourceType != null) {
                 final Set<String> templatePaths = templateMap.computeIfAbsent(resourceType, key -> new HashSet<>());
@@ -89,6 +201,19 @@ public class TemplateInfoAdapterFactory implements AdapterFactory {
         return makeImmutableCopy(templateMap);
     }
 
+    private static class Snapshot {
+
+        private final Map<String, Set<String>> resourceTypeToTemplates;
+
+        // only read after construction, therefore safe to share between threads
+        private final PathTrie templatePaths = new PathTrie();
+
+        private Snapshot(Map<String, Set<String>> resourceTypeToTemplates) {
+            this.resourceTypeToTemplates = resourceTypeToTemplates;
+            resourceTypeToTemplates.values().forEach(paths -> paths.forEach(templatePaths::add));
+        }
+    }
+
     private static Map<String, Set<String>> makeImmutableCopy(Map<String, Set<String>> templateMap) {
         final Map<String, Set<String>> copy = new HashMap<>();
         for (String key : templateMap.keySet()) {
@@ -26,4 +26,16 @@ public interface TagNamespaceProvider {
     @NotNull
     String[] getNamespaces(@NotNull SlingHttpServletRequest request, @NotNull String path, @NotNull ValueMap config);
 
+    /**
+     * Providers may declare that the namespaces they return only depend on the content path, the
+     * tag field configuration and the tags in the repository, but not on the current user or any
+     * other state of the request. The namespaces of such providers are cached for a short time
+     * and shared by all users.
+     *
+     * @return {@code true} if the namespaces returned by this provider may be cached
+     */
+    default boolean isCacheable() {
+        return false;
+    }
+
 }
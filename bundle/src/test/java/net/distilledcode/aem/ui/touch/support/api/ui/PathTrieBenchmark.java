@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.api.ui;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Compares filtering out the descendants of other paths with a {@link PathTrie} to the pairwise
+ * comparison of all paths it replaced. Run with {@link #main(String[])}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class PathTrieBenchmark {
+
+    @Param({"10000", "50000"})
+    private int count;
+
+    private List<String> paths;
+
+    @Setup
+    public void setUp() {
+        paths = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final String component = "/apps/project" + (i % 50) + "/components/component" + (i / 5);
+            // every fifth path is a dialog, the others are descendants of it
+            paths.add(i % 5 == 0 ? component + "/dialog" : component + "/dialog/items/tab" + (i % 5));
+        }
+    }
+
+    @Benchmark
+    public List<String> pairwise() {
+        return paths.stream()
+                .filter(path -> paths.stream().noneMatch(ancestor -> isAncestorOf(ancestor, path)))
+                .collect(Collectors.toList());
+    }
+
+    @Benchmark
+    public List<String> pathTrie() {
+        final PathTrie trie = new PathTrie();
+        paths.forEach(trie::add);
+        return paths.stream()
+                .filter(path -> !trie.hasAncestor(path))
+                .collect(Collectors.toList());
+    }
+
+    private static boolean isAncestorOf(String ancestor, String path) {
+        return ancestor.length() < path.length()
+                && path.startsWith(ancestor) && path.charAt(ancestor.length()) == '/';
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(PathTrieBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
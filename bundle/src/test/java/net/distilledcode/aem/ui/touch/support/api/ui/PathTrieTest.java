@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.api.ui;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PathTrieTest {
+
+    @Test
+    void addsPaths() {
+        final PathTrie trie = new PathTrie();
+        assertThat(trie.isEmpty(), is(true));
+        assertThat(trie.add("/a/b"), is(true));
+        assertThat(trie.add("/a/b"), is(false));
+        assertThat(trie.add("/a"), is(true));
+
+        assertThat(trie.size(), is(2));
+        assertThat(trie.contains("/a"), is(true));
+        assertThat(trie.contains("/a/b"), is(true));
+        assertThat(trie.contains("/a/b/c"), is(false));
+        assertThat(trie.contains("/b"), is(false));
+    }
+
+    @Test
+    void findsProperAncestors() {
+        final PathTrie trie = new PathTrie();
+        trie.add("/a/b");
+        trie.add("/a/b/c/d");
+
+        assertThat(trie.hasAncestor("/a/b"), is(false));
+        assertThat(trie.hasAncestor("/a"), is(false));
+        assertThat(trie.hasAncestor("/a/b/c"), is(true));
+        assertThat(trie.findAncestor("/a/b/c/d/e"), is("/a/b"));
+    }
+
+    @Test
+    void distinguishesSiblingsWithCommonPrefix() {
+        final PathTrie trie = new PathTrie();
+        trie.add("/a/b");
+
+        assertThat(trie.hasAncestor("/a/bc"), is(false));
+        assertThat(trie.hasAncestor("/a/bc/d"), is(false));
+        assertThat(trie.contains("/a/bc"), is(false));
+        assertThat(trie.hasAncestor("/a/b/c"), is(true));
+    }
+
+    @Test
+    void treatsRootAsAncestorOfAllPaths() {
+        final PathTrie trie = new PathTrie();
+        assertThat(trie.hasAncestor("/"), is(false));
+        trie.add("/");
+
+        assertThat(trie.contains("/"), is(true));
+        assertThat(trie.hasAncestor("/"), is(false));
+        assertThat(trie.findAncestor("/a"), is("/"));
+        assertThat(trie.findAncestor("/a/b"), is("/"));
+    }
+
+    @Test
+    void returnsNullWithoutAncestor() {
+        final PathTrie trie = new PathTrie();
+        trie.add("/a/b/c");
+
+        assertThat(trie.findAncestor("/a/b"), is(nullValue()));
+        assertThat(trie.findAncestor("/x/y"), is(nullValue()));
+    }
+
+    @Test
+    void rejectsRelativePaths() {
+        final PathTrie trie = new PathTrie();
+        assertThrows(IllegalArgumentException.class, () -> trie.add("a/b"));
+        assertThrows(IllegalArgumentException.class, () -> trie.contains("a"));
+        assertThrows(IllegalArgumentException.class, () -> trie.hasAncestor(""));
+        assertThrows(IllegalArgumentException.class, () -> trie.findAncestor("a/b"));
+    }
+}
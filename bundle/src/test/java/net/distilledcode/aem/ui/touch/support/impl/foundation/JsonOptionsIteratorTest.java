@@ -0,0 +1,70 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.foundation;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+
+class JsonOptionsIteratorTest {
+
+    @Test
+    void parsesOptions() {
+        final JsonOptionsIterator iterator = iterator("[{\"text\": \"One\", \"value\": \"1\"}, {\"text\": \"Two\", \"value\": 2}]");
+        assertThat(read(iterator), contains("One=1", "Two=2"));
+        assertThat(iterator.isFailed(), is(false));
+    }
+
+    @Test
+    void skipsInvalidEntries() {
+        final JsonOptionsIterator iterator = iterator("[\"plain\", {\"text\": \"No value\"}, "
+                + "{\"text\": \"One\", \"value\": \"1\", \"nested\": {\"list\": [1, {\"a\": []}]}}, [1, 2]]");
+        assertThat(read(iterator), contains("One=1"));
+        assertThat(iterator.isFailed(), is(false));
+    }
+
+    @Test
+    void failsOnMissingArray() {
+        final JsonOptionsIterator iterator = iterator("{\"text\": \"One\", \"value\": \"1\"}");
+        assertThat(read(iterator), is(empty()));
+        assertThat(iterator.isFailed(), is(true));
+    }
+
+    @Test
+    void keepsOptionsBeforeMalformedJson() {
+        final JsonOptionsIterator iterator = iterator("[{\"text\": \"One\", \"value\": \"1\"}, {\"text\": ");
+        assertThat(read(iterator), contains("One=1"));
+        assertThat(iterator.isFailed(), is(true));
+    }
+
+    private static JsonOptionsIterator iterator(String json) {
+        return new JsonOptionsIterator("/options.json", new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static List<String> read(JsonOptionsIterator iterator) {
+        final List<String> options = new ArrayList<>();
+        iterator.forEachRemaining(option -> options.add(option.getText() + "=" + option.getValue()));
+        return options;
+    }
+}
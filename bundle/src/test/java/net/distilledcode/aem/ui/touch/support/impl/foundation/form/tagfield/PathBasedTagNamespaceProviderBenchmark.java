@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.foundation.form.tagfield;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares resolving the namespaces of a set of paths through the mappings indexed by their
+ * literal prefix, with and without the cache, to matching every mapping against every path.
+ * Run with {@link #main(String[])}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class PathBasedTagNamespaceProviderBenchmark {
+
+    private static final int PATH_COUNT = 200;
+
+    @Param({"10", "100", "1000"})
+    private int mappingCount;
+
+    private Pattern[] patterns;
+
+    private String[][] namespaces;
+
+    private String[] paths;
+
+    private PathBasedTagNamespaceProvider.Mappings indexed;
+
+    private PathBasedTagNamespaceProvider.Mappings cached;
+
+    @Setup
+    public void setUp() {
+        final String[] configs = new String[mappingCount];
+        patterns = new Pattern[mappingCount];
+        namespaces = new String[mappingCount][];
+        for (int i = 0; i < mappingCount; i++) {
+            configs[i] = "/content/site" + i + "/([^/]+)/.* :: site" + i + ",$1";
+            patterns[i] = Pattern.compile("/content/site" + i + "/([^/]+)/.*");
+            namespaces[i] = new String[]{"site" + i, "$1"};
+        }
+        paths = new String[PATH_COUNT];
+        for (int i = 0; i < PATH_COUNT; i++) {
+            paths[i] = "/content/site" + (i % mappingCount) + "/language" + (i % 7) + "/page" + i;
+        }
+        indexed = new PathBasedTagNamespaceProvider.Mappings(configs, 0);
+        cached = new PathBasedTagNamespaceProvider.Mappings(configs, PATH_COUNT);
+    }
+
+    @Benchmark
+    public void matchAll(Blackhole blackhole) {
+        for (String path : paths) {
+            final Collection<String> result = new TreeSet<>();
+            for (int i = 0; i < patterns.length; i++) {
+                final Matcher matcher = patterns[i].matcher(path);
+                if (matcher.matches()) {
+                    for (String namespace : namespaces[i]) {
+                        result.add(matcher.replaceAll(namespace));
+                    }
+                }
+            }
+            blackhole.consume(result.toArray(new String[0]));
+        }
+    }
+
+    @Benchmark
+    public void prefixIndex(Blackhole blackhole) {
+        for (String path : paths) {
+            blackhole.consume(indexed.getNamespaces(path));
+        }
+    }
+
+    @Benchmark
+    public void prefixIndexCached(Blackhole blackhole) {
+        for (String path : paths) {
+            blackhole.consume(cached.getNamespaces(path));
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(PathBasedTagNamespaceProviderBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
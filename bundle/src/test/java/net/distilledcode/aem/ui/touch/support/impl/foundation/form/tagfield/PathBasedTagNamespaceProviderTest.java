@@ -0,0 +1,139 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.foundation.form.tagfield;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+class PathBasedTagNamespaceProviderTest {
+
+    private static final String[] MAPPINGS = {
+            "/content/.* :: generic",
+            "/content/([^/]+)/.* :: $1",
+            "/content/site/.* :: site",
+            "/content/site/en/.* :: site-en,en",
+            "^/content/site$ :: site-root",
+            "/content/site-[a-z]+/.* :: site-lang",
+            "/content/site\\.html/.* :: html",
+            "/content/x+/.* :: x",
+            "/content/ay?b/.* :: ab",
+            "/content/ca{2}t/.* :: caat",
+            "/content/dam/.*|/content/assets/.* :: dam",
+            "\\Q/content/quoted\\E/.* :: quoted",
+            "(?i)/CONTENT/upper/.* :: upper",
+            ".*/jcr:content :: content-node"
+    };
+
+    private static final String[] PATHS = {
+            "/content", "/content/", "/content/site", "/content/site/", "/content/site/en/page",
+            "/content/site/de/page", "/content/site-de/page", "/content/site-DE/page", "/content/site.html/page",
+            "/content/siteXhtml/page", "/content/x/page", "/content/xxx/page", "/content/ab/page",
+            "/content/ayb/page", "/content/ayyb/page", "/content/caat/page", "/content/cat/page",
+            "/content/dam/image", "/content/assets/image", "/content/quoted/page", "/content/upper/page",
+            "/CONTENT/upper/page", "/content/site/en/page/jcr:content", "/etc/tags", ""
+    };
+
+    @Test
+    void literalPrefixEndsBeforeFirstNonLiteral() {
+        assertThat(PathBasedTagNamespaceProvider.getLiteralPrefix("/content/([^/]+).*"), is("/content/"));
+        assertThat(PathBasedTagNamespaceProvider.getLiteralPrefix("/content/site-[a-z]+/.*"), is("/content/site-"));
+        assertThat(PathBasedTagNamespaceProvider.getLiteralPrefix(".*/jcr:content"), is(""));
+    }
+
+    @Test
+    void literalPrefixHandlesAnchors() {
+        assertThat(PathBasedTagNamespaceProvider.getLiteralPrefix("^/content/site$"), is("/content/site"));
+        assertThat(PathBasedTagNamespaceProvider.getLiteralPrefix("^^/content"), is(""));
+        assertThat(PathBasedTagNamespaceProvider.getLiteralPrefix("$"), is(""));
+    }
+
+    @Test
+    void literalPrefixUnescapesMetaCharacters() {
+        assertThat(PathBasedTagNamespaceProvider.getLiteralPrefix("/content/site\\.html/.*"), is("/content/site.html/"));
+        assertThat(PathBasedTagNamespaceProvider.getLiteralPrefix("/a\\(b\\)\\[c\\]\\$/.*"), is("/a(b)[c]$/"));
+        assertThat(PathBasedTagNamespaceProvider.getLiteralPrefix("/content/\\d+/.*"), is("/content/"));
+        assertThat(PathBasedTagNamespaceProvider.getLiteralPrefix("\\Q/content\\E/.*"), is(""));
+    }
+
+    @Test
+    void literalPrefixExcludesOptionalCharacters() {
+        assertThat(PathBasedTagNamespaceProvider.getLiteralPrefix("/content/x+/.*"), is("/content/x"));
+        assertThat(PathBasedTagNamespaceProvider.getLiteralPrefix("/content/ay?b"), is("/content/a"));
+        assertThat(PathBasedTagNamespaceProvider.getLiteralPrefix("/content/ay*b"), is("/content/a"));
+        assertThat(PathBasedTagNamespaceProvider.getLiteralPrefix("/content/ca{2}t"), is("/content/c"));
+        assertThat(PathBasedTagNamespaceProvider.getLiteralPrefix("/content/site\\.?html"), is("/content/site"));
+    }
+
+    @Test
+    void literalPrefixIsEmptyForAlternativesAndFlags() {
+        assertThat(PathBasedTagNamespaceProvider.getLiteralPrefix("/content/dam/.*|/content/assets/.*"), is(""));
+        assertThat(PathBasedTagNamespaceProvider.getLiteralPrefix("/content/(dam|assets)/.*"), is(""));
+        assertThat(PathBasedTagNamespaceProvider.getLiteralPrefix("(?i)/CONTENT/.*"), is(""));
+    }
+
+    @Test
+    void namespacesMatchEvaluatingEveryMapping() {
+        final PathBasedTagNamespaceProvider.Mappings mappings = new PathBasedTagNamespaceProvider.Mappings(MAPPINGS, 10);
+        for (String path : PATHS) {
+            assertThat(path, Arrays.asList(mappings.getNamespaces(path)), is(matchAll(MAPPINGS, path)));
+        }
+    }
+
+    @Test
+    void cachedNamespacesMatchEvaluatingEveryMapping() {
+        final PathBasedTagNamespaceProvider.Mappings mappings = new PathBasedTagNamespaceProvider.Mappings(MAPPINGS, 3);
+        for (int i = 0; i < 3; i++) {
+            for (String path : PATHS) {
+                assertThat(path, Arrays.asList(mappings.getNamespaces(path)), is(matchAll(MAPPINGS, path)));
+            }
+        }
+    }
+
+    @Test
+    void namespacesOfOverlappingPrefixesAreMerged() {
+        final PathBasedTagNamespaceProvider.Mappings mappings = new PathBasedTagNamespaceProvider.Mappings(MAPPINGS, 0);
+        assertThat(Arrays.asList(mappings.getNamespaces("/content/site/en/page")),
+                is(Arrays.asList("en", "generic", "site", "site-en")));
+        assertThat(Arrays.asList(mappings.getNamespaces("/content/site")), is(Arrays.asList("generic", "site-root")));
+    }
+
+    /**
+     * Evaluates every mapping against the path, the way namespaces were resolved before the
+     * mappings were indexed by their literal prefix.
+     */
+    private static List<String> matchAll(String[] configs, String path) {
+        final Collection<String> namespaces = new TreeSet<>();
+        for (String config : configs) {
+            final String[] parts = config.split(" :: ");
+            final Matcher matcher = Pattern.compile(parts[0].trim()).matcher(path);
+            if (matcher.matches()) {
+                for (String namespace : parts[1].split(",")) {
+                    namespaces.add(matcher.replaceAll(namespace.trim()));
+                }
+            }
+        }
+        return Arrays.asList(namespaces.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.foundation.form.tagfield;
+
+import org.apache.sling.api.resource.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Compares paging 100k tags with the bounded heap of
+ * {@link TagFieldDataSourceFactory#firstInOrder} to sorting all of them. Run with
+ * {@link #main(String[])}; the GC profiler reports the memory allocated per page.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class TagFieldDataSourceFactoryBenchmark {
+
+    private static final int TAG_COUNT = 100_000;
+
+    private static final int LIMIT = 20;
+
+    @Param({"0", "1000"})
+    private int offset;
+
+    private List<Resource> tags;
+
+    @Setup
+    public void setUp() {
+        tags = TagFieldDataSourceFactoryTest.largeTags(TAG_COUNT);
+    }
+
+    @Benchmark
+    public List<Resource> sortAll() {
+        return tags.stream()
+                .sorted(Comparator.comparing(Resource::getName).thenComparing(Resource::getPath))
+                .skip(offset)
+                .limit(LIMIT)
+                .collect(Collectors.toList());
+    }
+
+    @Benchmark
+    public List<Resource> firstInOrder() {
+        return TagFieldDataSourceFactory.firstInOrder(tags.stream(), offset, LIMIT);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TagFieldDataSourceFactoryBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.foundation.form.tagfield;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.SyntheticResource;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+
+class TagFieldDataSourceFactoryTest {
+
+    @Test
+    void firstInOrderSortsByNameAndPath() {
+        assertThat(paths(TagFieldDataSourceFactory.firstInOrder(tags(), 0, 10)), contains(
+                "/etc/tags/x/apple", "/etc/tags/y/apple", "/etc/tags/x/banana", "/etc/tags/x/cherry", "/etc/tags/x/date"));
+    }
+
+    @Test
+    void firstInOrderReturnsRequestedPage() {
+        assertThat(paths(TagFieldDataSourceFactory.firstInOrder(tags(), 1, 2)), contains(
+                "/etc/tags/y/apple", "/etc/tags/x/banana"));
+        assertThat(paths(TagFieldDataSourceFactory.firstInOrder(tags(), 4, 2)), contains(
+                "/etc/tags/x/date"));
+    }
+
+    @Test
+    void firstInOrderReturnsEmptyPageBeyondLastResource() {
+        assertThat(TagFieldDataSourceFactory.firstInOrder(tags(), 5, 2), empty());
+        assertThat(TagFieldDataSourceFactory.firstInOrder(tags(), 0, 0), empty());
+    }
+
+    @Test
+    void firstInOrderDoesNotOverflowWithHugeLimit() {
+        assertThat(paths(TagFieldDataSourceFactory.firstInOrder(tags(), 3, Integer.MAX_VALUE)), contains(
+                "/etc/tags/x/cherry", "/etc/tags/x/date"));
+        assertThat(TagFieldDataSourceFactory.firstInOrder(tags(), Integer.MAX_VALUE, Integer.MAX_VALUE), empty());
+    }
+
+    @Test
+    void firstInOrderPagesLargeInputLikeSortingAll() {
+        final List<Resource> tags = largeTags(100_000);
+        final List<String> sorted = tags.stream()
+                .sorted(Comparator.comparing(Resource::getName).thenComparing(Resource::getPath))
+                .map(Resource::getPath)
+                .collect(Collectors.toList());
+        for (int offset : new int[]{0, 20, 5_000, 99_990, 100_000}) {
+            assertThat(paths(TagFieldDataSourceFactory.firstInOrder(tags.stream(), offset, 20)),
+                    is(sorted.subList(Math.min(offset, sorted.size()), Math.min(offset + 20, sorted.size()))));
+        }
+    }
+
+    private static Stream<Resource> tags() {
+        return Stream.of("/etc/tags/x/date", "/etc/tags/x/banana", "/etc/tags/y/apple", "/etc/tags/x/cherry",
+                "/etc/tags/x/apple")
+                .map(path -> new SyntheticResource(null, path, "cq/Tag"));
+    }
+
+    static List<Resource> largeTags(int count) {
+        final List<Resource> tags = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            // names repeat across namespaces, so that the path decides their order
+            tags.add(new SyntheticResource(null, "/etc/tags/namespace" + (i % 10) + "/tag" + (i / 10), "cq/Tag"));
+        }
+        Collections.shuffle(tags, new Random(42));
+        return tags;
+    }
+
+    private static List<String> paths(List<Resource> resources) {
+        return resources.stream().map(Resource::getPath).collect(Collectors.toList());
+    }
+}
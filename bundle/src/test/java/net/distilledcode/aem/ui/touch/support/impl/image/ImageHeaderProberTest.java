@@ -0,0 +1,212 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.image;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Dimension;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Optional;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+class ImageHeaderProberTest {
+
+    @Test
+    void probesJpeg() throws IOException {
+        final byte[] jpeg = new Bytes()
+                .u8(0xFF, 0xD8)
+                // APP0 segment preceding the frame header
+                .u8(0xFF, 0xE0).u16be(16).ascii("JFIF").zeros(10)
+                .u8(0xFF, 0xC0).u16be(17).u8(8).u16be(480).u16be(640).zeros(12)
+                .toByteArray();
+        assertThat(ImageHeaderProber.probe(new ByteArrayInputStream(jpeg)), is(dimension(640, 480)));
+    }
+
+    @Test
+    void rejectsJpegWithInvalidSegmentLength() throws IOException {
+        final byte[] jpeg = new Bytes()
+                .u8(0xFF, 0xD8)
+                .u8(0xFF, 0xE0).u16be(1)
+                .u8(0xFF, 0xC0).u16be(17).u8(8).u16be(480).u16be(640).zeros(12)
+                .toByteArray();
+        assertThat(ImageHeaderProber.probe(new ByteArrayInputStream(jpeg)), is(Optional.empty()));
+    }
+
+    @Test
+    void probesPng() throws IOException {
+        final byte[] png = new Bytes()
+                .u8(0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)
+                .u32be(13).ascii("IHDR").u32be(800).u32be(600).u8(8, 6, 0, 0, 0)
+                .toByteArray();
+        assertThat(ImageHeaderProber.probe(new ByteArrayInputStream(png)), is(dimension(800, 600)));
+    }
+
+    @Test
+    void probesGif() throws IOException {
+        final byte[] gif = new Bytes()
+                .ascii("GIF89a").u16le(320).u16le(200).zeros(4)
+                .toByteArray();
+        assertThat(ImageHeaderProber.probe(new ByteArrayInputStream(gif)), is(dimension(320, 200)));
+    }
+
+    @Test
+    void probesLossyWebP() throws IOException {
+        final byte[] webp = webP("VP8 ")
+                // frame tag and start code
+                .zeros(3).u8(0x9D, 0x01, 0x2A)
+                .u16le(1024).u16le(768)
+                .toByteArray();
+        assertThat(ImageHeaderProber.probe(new ByteArrayInputStream(webp)), is(dimension(1024, 768)));
+    }
+
+    @Test
+    void probesLosslessWebP() throws IOException {
+        final byte[] webp = webP("VP8L")
+                .u8(0x2F).u32le((1024 - 1) | (768 - 1) << 14).zeros(5)
+                .toByteArray();
+        assertThat(ImageHeaderProber.probe(new ByteArrayInputStream(webp)), is(dimension(1024, 768)));
+    }
+
+    @Test
+    void probesExtendedWebP() throws IOException {
+        final byte[] webp = webP("VP8X")
+                .zeros(4).u24le(5000 - 1).u24le(3000 - 1)
+                .toByteArray();
+        assertThat(ImageHeaderProber.probe(new ByteArrayInputStream(webp)), is(dimension(5000, 3000)));
+    }
+
+    @Test
+    void probesTiff() throws IOException {
+        final byte[] tiff = new Bytes()
+                .ascii("II").u16le(42).u32le(8)
+                .u16le(2)
+                .u16le(256).u16le(3).u32le(1).u16le(1200).u16le(0)
+                .u16le(257).u16le(4).u32le(1).u32le(900)
+                .u32le(0)
+                .toByteArray();
+        assertThat(ImageHeaderProber.probe(new ByteArrayInputStream(tiff)), is(dimension(1200, 900)));
+    }
+
+    @Test
+    void probesTiffWithDirectoryBeyondScanLimit() throws IOException {
+        final int ifdOffset = ImageHeaderProber.MAX_SCAN_BYTES + 1000;
+        final byte[] tiff = new Bytes()
+                .ascii("MM").u16be(42).u32be(ifdOffset)
+                .zeros(ifdOffset - 8)
+                .u16be(2)
+                .u16be(256).u16be(4).u32be(1).u32be(1200)
+                .u16be(257).u16be(3).u32be(1).u16be(900).u16be(0)
+                .u32be(0)
+                .toByteArray();
+        assertThat(ImageHeaderProber.probe(new ByteArrayInputStream(tiff)), is(Optional.empty()));
+        assertThat(ImageHeaderProber.probe(new ByteArrayInputStream(tiff), randomAccess(tiff)), is(dimension(1200, 900)));
+    }
+
+    @Test
+    void probesTiffWithDirectoryLargerThanBufferBeyondScanLimit() throws IOException {
+        final int ifdOffset = ImageHeaderProber.MAX_SCAN_BYTES + 1001;
+        final int otherEntries = 1000;
+        final Bytes bytes = new Bytes()
+                .ascii("II").u16le(42).u32le(ifdOffset)
+                .zeros(ifdOffset - 8)
+                .u16le(otherEntries + 2);
+        for (int i = 0; i < otherEntries; i++) {
+            bytes.u16le(270).u16le(2).u32le(4).ascii("abc").u8(0);
+        }
+        final byte[] tiff = bytes
+                .u16le(256).u16le(4).u32le(1).u32le(1200)
+                .u16le(257).u16le(3).u32le(1).u16le(900).u16le(0)
+                .u32le(0)
+                .toByteArray();
+        assertThat(ImageHeaderProber.probe(new ByteArrayInputStream(tiff), randomAccess(tiff)), is(dimension(1200, 900)));
+    }
+
+    @Test
+    void ignoresUnknownFormats() throws IOException {
+        final byte[] text = new Bytes().ascii("Hello, World!").toByteArray();
+        assertThat(ImageHeaderProber.probe(new ByteArrayInputStream(text)), is(Optional.empty()));
+    }
+
+    private static Optional<Dimension> dimension(int width, int height) {
+        return Optional.of(new Dimension(width, height));
+    }
+
+    private static Bytes webP(String chunk) {
+        return new Bytes().ascii("RIFF").u32le(0).ascii("WEBP").ascii(chunk).u32le(0);
+    }
+
+    private static ImageHeaderProber.RandomAccess randomAccess(byte[] bytes) {
+        return (buffer, position) -> {
+            if (position >= bytes.length) {
+                return -1;
+            }
+            final int read = (int) Math.min(buffer.length, bytes.length - position);
+            System.arraycopy(bytes, (int) position, buffer, 0, read);
+            return read;
+        };
+    }
+
+    private static class Bytes {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        private Bytes u8(int... values) {
+            for (int value : values) {
+                bytes.write(value);
+            }
+            return this;
+        }
+
+        private Bytes u16be(int value) {
+            return u8(value >> 8 & 0xFF, value & 0xFF);
+        }
+
+        private Bytes u16le(int value) {
+            return u8(value & 0xFF, value >> 8 & 0xFF);
+        }
+
+        private Bytes u24le(int value) {
+            return u8(value & 0xFF, value >> 8 & 0xFF, value >> 16 & 0xFF);
+        }
+
+        private Bytes u32be(int value) {
+            return u16be(value >>> 16).u16be(value & 0xFFFF);
+        }
+
+        private Bytes u32le(int value) {
+            return u16le(value & 0xFFFF).u16le(value >>> 16);
+        }
+
+        private Bytes ascii(String value) {
+            for (char c : value.toCharArray()) {
+                bytes.write(c);
+            }
+            return this;
+        }
+
+        private Bytes zeros(int n) {
+            return u8(new int[n]);
+        }
+
+        private byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+}
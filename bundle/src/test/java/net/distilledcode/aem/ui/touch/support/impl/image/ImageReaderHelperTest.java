@@ -0,0 +1,68 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.image;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+
+class ImageReaderHelperTest {
+
+    @Test
+    void mimeTypesAndFormatNamesShareTheirFormatKey() {
+        assertThat(ImageReaderHelper.getFormatKey("image/jpeg"), is("jpeg"));
+        assertThat(ImageReaderHelper.getFormatKey("image/pjpeg"), is("jpeg"));
+        assertThat(ImageReaderHelper.getFormatKey("JPEG"), is("jpeg"));
+        assertThat(ImageReaderHelper.getFormatKey("jpg"), is("jpeg"));
+        assertThat(ImageReaderHelper.getFormatKey("image/tiff"), is("tiff"));
+        assertThat(ImageReaderHelper.getFormatKey("tif"), is("tiff"));
+        assertThat(ImageReaderHelper.getFormatKey("image/x-png"), is("png"));
+        assertThat(ImageReaderHelper.getFormatKey("Image/PNG; charset=binary"), is("png"));
+    }
+
+    @Test
+    void recordsStatisticsByFormatKeyWithAndWithoutMimeType() throws IOException {
+        final byte[] png = png(30, 20);
+        assertThat(ImageReaderHelper.from(() -> new ByteArrayInputStream(png), "image/png")
+                .withImageReader(ImageReaderHelper::getImageDimensions), is(Optional.of(new Dimension(30, 20))));
+        assertThat(ImageReaderHelper.from(() -> new ByteArrayInputStream(png))
+                .withImageReader(ImageReaderHelper::getImageDimensions), is(Optional.of(new Dimension(30, 20))));
+
+        final List<String> formats = ImageReaderHelper.getReaderStatistics().stream()
+                .filter(statistics -> statistics.getFormat().contains("png"))
+                .map(ImageReaderHelper.ReaderStatistics::getFormat)
+                .collect(Collectors.toList());
+        assertThat(formats, contains("png"));
+    }
+
+    private static byte[] png(int width, int height) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", bytes);
+        return bytes.toByteArray();
+    }
+}
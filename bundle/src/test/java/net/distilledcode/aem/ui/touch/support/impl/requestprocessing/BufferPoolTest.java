@@ -0,0 +1,66 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.requestprocessing;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BufferPoolTest {
+
+    @Test
+    void reusesReleasedBuffers() {
+        final BufferPool pool = new BufferPool(16, 2);
+        final byte[] buffer = pool.acquire();
+        assertThat(buffer.length, is(16));
+        pool.release(buffer);
+
+        assertThat(pool.acquire(), sameInstance(buffer));
+        assertThat(pool.getAllocations(), is(1L));
+        assertThat(pool.getReuses(), is(1L));
+    }
+
+    @Test
+    void dropsBuffersBeyondCapacity() {
+        final BufferPool pool = new BufferPool(16, 1);
+        final byte[] first = pool.acquire();
+        final byte[] second = pool.acquire();
+        pool.release(first);
+        pool.release(second);
+
+        assertThat(pool.acquire(), sameInstance(first));
+        final byte[] third = pool.acquire();
+        assertThat(third, not(sameInstance(second)));
+        assertThat(pool.getAllocations(), is(3L));
+        assertThat(pool.getReuses(), is(1L));
+    }
+
+    @Test
+    void rejectsBuffersOfOtherSize() {
+        final BufferPool pool = new BufferPool(16, 1);
+        assertThrows(IllegalArgumentException.class, () -> pool.release(new byte[8]));
+    }
+
+    @Test
+    void rejectsInvalidConfiguration() {
+        assertThrows(IllegalArgumentException.class, () -> new BufferPool(0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new BufferPool(16, -1));
+    }
+}
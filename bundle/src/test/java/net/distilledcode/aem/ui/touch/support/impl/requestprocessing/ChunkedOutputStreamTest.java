@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.requestprocessing;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ChunkedOutputStreamTest {
+
+    private static final String TEXT = "Hello, chunked World!";
+
+    @Test
+    void collectsBytesInChunks() throws IOException {
+        final ChunkedOutputStream out = new ChunkedOutputStream(new BufferPool(4, 16));
+        out.write(TEXT.getBytes(StandardCharsets.UTF_8));
+
+        assertThat(out.size(), is((long) TEXT.length()));
+        assertThat(out.toByteBuffers().size(), is(6));
+        assertThat(read(out.toSharedInputStream()), is(TEXT));
+        // shared streams do not consume the content
+        assertThat(read(out.toSharedInputStream()), is(TEXT));
+        assertThat(read(out.toInputStream()), is(TEXT));
+    }
+
+    @Test
+    void releasesChunksWhileReading() throws IOException {
+        final BufferPool pool = new BufferPool(4, 16);
+        final ChunkedOutputStream out = new ChunkedOutputStream(pool);
+        out.write(TEXT.getBytes(StandardCharsets.UTF_8));
+        assertThat(pool.getAllocations(), is(6L));
+        read(out.toInputStream());
+
+        final ChunkedOutputStream next = new ChunkedOutputStream(pool);
+        next.write(TEXT.getBytes(StandardCharsets.UTF_8));
+        assertThat(pool.getAllocations(), is(6L));
+        assertThat(pool.getReuses(), is(6L));
+    }
+
+    @Test
+    void resetReturnsChunksToPool() {
+        final BufferPool pool = new BufferPool(4, 16);
+        final ChunkedOutputStream out = new ChunkedOutputStream(pool);
+        out.write(TEXT.getBytes(StandardCharsets.UTF_8), 0, 8);
+        out.reset();
+        assertThat(out.size(), is(0L));
+
+        out.write(TEXT.getBytes(StandardCharsets.UTF_8), 0, 8);
+        assertThat(pool.getAllocations(), is(2L));
+        assertThat(pool.getReuses(), is(2L));
+    }
+
+    @Test
+    void rejectsWritesAfterConsumption() throws IOException {
+        final ChunkedOutputStream out = new ChunkedOutputStream(new BufferPool(4, 16));
+        out.write(1);
+        out.toInputStream().close();
+        assertThrows(IllegalStateException.class, () -> out.write(2));
+        assertThrows(IllegalStateException.class, out::toInputStream);
+    }
+
+    @Test
+    void decodesCharactersSpanningChunks() {
+        final String text = "Grüße, €uro";
+        final ChunkedOutputStream out = new ChunkedOutputStream(new BufferPool(4, 16));
+        out.write(text.getBytes(StandardCharsets.UTF_8), 0, text.getBytes(StandardCharsets.UTF_8).length);
+        assertThat(out.toCharBuffer(StandardCharsets.UTF_8).toString(), is(text));
+    }
+
+    private static String read(InputStream inputStream) throws IOException {
+        try (InputStream closeable = inputStream) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[3];
+            int read;
+            while ((read = closeable.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
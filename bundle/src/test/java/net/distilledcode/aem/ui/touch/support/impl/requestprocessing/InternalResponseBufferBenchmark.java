@@ -0,0 +1,114 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.distilledcode.aem.ui.touch.support.impl.requestprocessing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the allocations of buffering an internal response in a growing byte array (as done
+ * before) with writing it into pooled chunks. Run with {@link #main(String[])}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InternalResponseBufferBenchmark {
+
+    @Param({"1024", "65536", "1048576"})
+    private int size;
+
+    private final char[] text = new char[1024];
+
+    private final byte[] sink = new byte[8192];
+
+    private BufferPool pool;
+
+    @Setup
+    public void setUp() {
+        Arrays.fill(text, 'x');
+        pool = new BufferPool(8192, 64);
+    }
+
+    @Benchmark
+    public int byteArray() throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (final Writer writer = new OutputStreamWriter(body, StandardCharsets.UTF_8)) {
+            write(writer);
+        }
+        return drain(new ByteArrayInputStream(body.toByteArray()));
+    }
+
+    @Benchmark
+    public int pooledChunks() throws IOException {
+        final ChunkedOutputStream body = new ChunkedOutputStream(pool);
+        try (final SyntheticHttpServletResponse response = new SyntheticHttpServletResponse(body)) {
+            response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+            final PrintWriter writer = response.getWriter();
+            write(writer);
+            writer.flush();
+        }
+        return drain(body.toInputStream());
+    }
+
+    private void write(Writer writer) throws IOException {
+        for (int written = 0; written < size; written += text.length) {
+            writer.write(text, 0, Math.min(text.length, size - written));
+        }
+    }
+
+    private int drain(InputStream in) throws IOException {
+        int total = 0;
+        int read;
+        while ((read = in.read(sink)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(InternalResponseBufferBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -43,6 +43,40 @@
         return reloadFn;
     }
 
+    // asynchronous actions respond with a status URL, which is polled until the action is no longer running
+    function awaitCompletion(deferred, pollInterval) {
+        return function (data, textStatus, jqXhr) {
+            if (!data || !data.statusUrl) {
+                deferred.resolve(data, textStatus, jqXhr);
+                return;
+            }
+            var poll = function poll() {
+                $.ajax({
+                        url: data.statusUrl,
+                        dataType: 'json',
+                        cache: false
+                    })
+                    .done(function (status, statusText, statusXhr) {
+                        if (status.status === 'running') {
+                            setTimeout(poll, pollInterval);
+                        } else {
+                            deferred.resolve(status, statusText, statusXhr);
+                        }
+                    })
+                    .fail(deferred.reject);
+            };
+            poll();
+        };
+    }
+
+    function notifyFailures(status) {
+        if (status && status.failed > 0) {
+            ui.notify('Error', status.failed + ' of ' + status.total + ' items failed', 'error');
+        } else if (status && (status.status === 'aborted' || status.status === 'interrupted')) {
+            ui.notify('Error', 'The action was ' + status.status, 'error');
+        }
+    }
+
     function actionHandler(el, config, collection, itemIds) {
         return function performAction() {
             var postData = {};
@@ -50,13 +84,19 @@
             postData['action'] = config.data.action;
             postData[config.data.paramName] = itemIds;
 
-            return $.ajax({
+            var completion = $.Deferred();
+            $.ajax({
                     method: config.data.method || 'post',
                     url: config.data.href,
                     contentType: 'application/x-www-form-urlencoded; charset=UTF-8',
                     data: postData
                 })
+                .done(awaitCompletion(completion, parseInt(config.data.pollInterval) || 1000))
+                .fail(completion.reject);
+
+            return completion.promise()
                 .done(reload(collection, config.data.delay))
+                .done(notifyFailures)
                 .done(function(data, textStatus, jqXhr) {
                     $(el).trigger('foundation-form-submitted', {
                         status: true,
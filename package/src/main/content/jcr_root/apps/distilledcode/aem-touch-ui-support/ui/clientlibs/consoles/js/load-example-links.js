@@ -0,0 +1,42 @@
+/*
+ *  Copyright 2020 Code Distillery GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+;(function (document, $) {
+    'use strict';
+
+    var SELECTOR = '.distilledcode-example-links[data-distilledcode-examples-src]';
+
+    function render(list, links) {
+        links.forEach(function (link) {
+            var anchor = $('<a class="coral-Link--subtle" target="_blank"></a>')
+                .attr('href', link.href)
+                .attr('title', link.title)
+                .text(link.title);
+            $('<li></li>').append(anchor).appendTo(list);
+        });
+    }
+
+    $(document).on('foundation-contentloaded', function (e) {
+        $(e.target).find(SELECTOR).each(function () {
+            var list = $(this);
+            var src = list.attr('data-distilledcode-examples-src');
+            // load each list only once, even if the content is loaded again
+            list.removeAttr('data-distilledcode-examples-src');
+            $.getJSON(src).done(function (links) {
+                render(list, links);
+            });
+        });
+    });
+})(document, jQuery);